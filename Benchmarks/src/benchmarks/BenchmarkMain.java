@@ -0,0 +1,31 @@
+package benchmarks;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks of the module, reporting throughput and allocation (GC profiler) for each
+ * one. Arguments are the usual JMH command line options (e.g. a benchmark name regexp, or "-p
+ * height=1080"); the mode of the benchmarks is throughput, unless it is given with "-bm".
+ *
+ * java -Djava.library.path=(OpenCV lib) -cp bin:../Tracking/bin:(jmh jars) benchmarks.BenchmarkMain [JMH options]
+ */
+public class BenchmarkMain {
+
+	public static void main(String args[]) throws RunnerException, CommandLineOptionException {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class);
+		if (!Arrays.asList(args).contains("-bm"))
+			options.mode(Mode.Throughput);
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,97 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import trajectories.DynamicFilter;
+import trajectories.FilterBank;
+
+/**
+ * Predict and update of the dynamic filters of all the active trajectories, for FRAMES frames
+ * after their creation: one filter object at a time (each filter with its own state), against
+ * ranges of consecutive filters in a shared FilterBank, as in the tracker. Each frame, the bank is
+ * arranged and updated as in the tracker: the filters updated in the frame come from two runs
+ * (trajectories without occlusions and, one in ten, trajectories found again after an occlusion),
+ * merged. Filters are created again in each invocation, since the gain of a filter becomes a
+ * subnormal number after about a thousand updates, which would make the arithmetic much slower
+ * than in actual trajectories.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(FilterBankBenchmark.FRAMES)
+public class FilterBankBenchmark {
+
+	static final int FRAMES = 16;
+
+	@Param({"1000", "10000", "100000"})
+	int tracks;
+
+	DynamicFilter[] filters;
+	FilterBank bank;
+	int[] order;
+	double[] x, y;
+	Point[] measures;
+	Point estimation = new Point();
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(0);
+		filters = new DynamicFilter[tracks];
+		bank = new FilterBank(tracks);
+		order = new int[tracks];
+		x = new double[tracks];
+		y = new double[tracks];
+		measures = new Point[tracks];
+		for (int i = 0; i < tracks; i++)
+			measures[i] = new Point(random.nextInt(1920), random.nextInt(1080));
+		//Merge of the first 90% of the slots with the last 10%, one of them every ten slots.
+		int first = 0, second = tracks - tracks/10;
+		for (int i = 0; i < tracks; i++)
+			order[i] = i % 10 == 9 && second < tracks ? second++ : first++;
+	}
+
+	@Benchmark
+	public double objects() {
+		for (int i = 0; i < tracks; i++)
+			filters[i] = new DynamicFilter(measures[i], 0);
+		double sum = 0;
+		for (int time = 1; time <= FRAMES; time++) {
+			for (int i = 0; i < tracks; i++) {
+				sum += filters[i].predict(time, estimation).x;
+				filters[i].update(measures[i], time);
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double bank() {
+		bank.arrange(order, 0);
+		for (int i = 0; i < tracks; i++)
+			bank.add(measures[i].x, measures[i].y, 0);
+		double sum = 0;
+		for (int time = 1; time <= FRAMES; time++) {
+			bank.predict(0, tracks, time, x, y);
+			for (int i = 0; i < tracks; i++) {
+				sum += x[i];
+				x[i] = measures[i].x;
+				y[i] = measures[i].y;
+			}
+			bank.arrange(order, tracks, 0, x, y, time);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,113 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import trajectories.PointCorrespondence;
+import trajectories.PointData;
+import trajectories.PointDetection;
+import trajectories.PointSearch;
+import trajectories.Trajectory;
+
+/**
+ * Point search for all the predictions of a frame: one FindPoint call per prediction, against
+ * the batch search (matchAll), sequential and parallel (one thread per processor). Interest points are spread over the image, and each prediction
+ * lies near a random interest point, with 70% of the predictions in the first occlusion bucket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PointSearchBenchmark {
+
+	@Param({"200", "2000", "20000", "100000"})
+	int corners;
+
+	@Param({"1080", "2160"})
+	int height;
+
+	ArrayList<PointData> points;
+	ArrayList<ArrayList<PointCorrespondence>> predictions;
+	PointSearch search;
+	ForkJoinPool pool;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(0);
+		int width = height*16/9;
+		points = new ArrayList<PointData>(corners);
+		for (int i = 0; i < corners; i++)
+			points.add(new PointData(new PointDetection(random.nextInt(width), random.nextInt(height), 1), false));
+		predictions = new ArrayList<ArrayList<PointCorrespondence>>();
+		for (int i = 0; i < 5; i++)
+			predictions.add(new ArrayList<PointCorrespondence>());
+		for (int i = 0; i < corners; i++) {
+			PointDetection p = points.get(random.nextInt(corners)).point;
+			Trajectory tr = new Trajectory(new PointDetection(p.position.x+random.nextInt(5)-2,
+					p.position.y+random.nextInt(5)-2, 1), 0);
+			PointCorrespondence c = tr.predict(1);
+			PointCorrespondence prediction = new PointCorrespondence(c.actual, c.predicted, tr);
+			prediction.status = 1;
+			predictions.get(random.nextInt(10) < 7 ? 0 : 1+random.nextInt(4)).add(prediction);
+		}
+		search = new PointSearch(height, width);
+		pool = new ForkJoinPool();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public int sequential() {
+		for (PointData p : points)
+			p.used = false;
+		search.Init(points);
+		int matched = 0;
+		for (ArrayList<PointCorrespondence> bucket : predictions) {
+			for (PointCorrespondence c : bucket) {
+				PointData p = search.FindPoint(c.predicted.point);
+				if (p != null) {
+					p.used = true;
+					matched++;
+				}
+			}
+		}
+		return matched;
+	}
+
+	@Benchmark
+	public int batch() {
+		search.Init(points);
+		int[] assignment = search.matchAll(predictions);
+		int matched = 0;
+		for (int i = 0; i < corners; i++)
+			if (assignment[i] >= 0)
+				matched++;
+		return matched;
+	}
+
+	@Benchmark
+	public int parallel() {
+		search.Init(points);
+		int[] assignment = search.matchAll(predictions, pool);
+		int matched = 0;
+		for (int i = 0; i < corners; i++)
+			if (assignment[i] >= 0)
+				matched++;
+		return matched;
+	}
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import trajectories.PointCorrespondence;
+import trajectories.PointData;
+import trajectories.PointDetection;
+import trajectories.PointSearch;
+import trajectories.Trajectory;
+
+/**
+ * Per-frame predict/correct cycle of the tracker, on the Java side: prediction of every active
+ * trajectory, search of its interest point, and trajectory update. Interest points are static,
+ * so trajectories do not grow and the cycle is in steady state. Run
+ * with "-prof gc" to check that the cycle does not allocate (gc.alloc.rate.norm close to 0 B/op).
+ *
+ * java -cp bin:../Tracking/bin:(jmh jars) org.openjdk.jmh.Main PredictCorrectBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PredictCorrectBenchmark {
+
+	@Param({"200", "5000"})
+	int tracks;
+
+	Trajectory[] trajectories;
+	ArrayList<PointData> points;
+	PointSearch search;
+	int time;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(0);
+		trajectories = new Trajectory[tracks];
+		points = new ArrayList<PointData>(tracks);
+		search = new PointSearch(1080, 1920);
+		time = 0;
+		for (int i = 0; i < tracks; i++) {
+			PointDetection point = new PointDetection(random.nextInt(1920), random.nextInt(1080), 1);
+			trajectories[i] = new Trajectory(point, time);
+			points.add(new PointData(point, false));
+		}
+	}
+
+	@Benchmark
+	public int frame() {
+		time++;
+		//Interest points of the new frame: static scene, so the same positions.
+		for (PointData p : points)
+			p.used = false;
+		search.Init(points);
+		//Predict, search and update each trajectory.
+		int updated = 0;
+		for (Trajectory tr : trajectories) {
+			PointCorrespondence c = tr.predict(time);
+			PointData p = search.FindPoint(c.predicted.point);
+			if (p != null && c.trajectory.update(p.point, time)) {
+				p.used = true;
+				updated++;
+			}
+		}
+		return updated;
+	}
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import trajectories.CornerDetector;
+import trajectories.Frame;
+import trajectories.NullTrajectorySink;
+import trajectories.Trajectories;
+
+/**
+ * Whole tracker update (prediction, optical flow, point search and correction) on a synthetic
+ * video: a blurred noise texture seen through a window that moves one pixel per frame, back and
+ * forth, so that trajectories are long and the number of active trajectories is stable. Interest
+ * points are detected in setup for all the frames of a cycle, so that only the tracker is measured.
+ * Finished trajectories are discarded. Needs the OpenCV native library in java.library.path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TrajectoriesBenchmark {
+
+	/**
+	 * Displacement of the window at the end of the cycle (pixels).
+	 */
+	static final int PAN = 16;
+
+	@Param({"480", "1080"})
+	int height;
+
+	Frame[] frames;
+	Trajectories tracker;
+	int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws ParserConfigurationException {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int width = height*16/9;
+		//Texture: uniform noise, blurred so that the corners are stable at the flow window scale.
+		byte[] noise = new byte[(height+PAN)*(width+PAN)];
+		new Random(0).nextBytes(noise);
+		Mat texture = new Mat(height+PAN, width+PAN, CvType.CV_8UC1);
+		texture.put(0, 0, noise);
+		Imgproc.GaussianBlur(texture, texture, new Size(7, 7), 2);
+		//Frames of a cycle: the window goes right and down, and then back.
+		CornerDetector detector = new CornerDetector();
+		frames = new Frame[2*PAN];
+		for (int i = 0; i < frames.length; i++) {
+			int offset = i < PAN ? i : 2*PAN-i;
+			frames[i] = new Frame();
+			Imgproc.cvtColor(texture.submat(offset, offset+height, offset, offset+width), frames[i].image, Imgproc.COLOR_GRAY2BGR);
+			detector.detect(frames[i]);
+		}
+		tracker = new Trajectories(frames[0], new NullTrajectorySink());
+		next = 1;
+	}
+
+	@Benchmark
+	public void update() throws ParserConfigurationException, IOException {
+		tracker.update(frames[next]);
+		next = (next+1) % frames.length;
+	}
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import trajectories.PointDetection;
+import trajectories.Trajectory;
+
+/**
+ * Trajectory.update for a trajectory of NODES nodes, from its creation: static points (each node
+ * replaces the previous one) or moving points (each node is added). Times are per update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(TrajectoryBenchmark.NODES)
+public class TrajectoryBenchmark {
+
+	static final int NODES = 64;
+
+	@Param({"static", "moving"})
+	String motion;
+
+	PointDetection[] points;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		points = new PointDetection[NODES];
+		for (int i = 0; i < NODES; i++) {
+			if (motion.equals("static"))
+				points[i] = new PointDetection(100 + 0.5*(i%2), 100, 1);
+			else
+				points[i] = new PointDetection(100 + 2*i, 100 + (i%3), 1);
+		}
+	}
+
+	@Benchmark
+	public Trajectory update() {
+		Trajectory tr = new Trajectory(points[0], 0, 0);
+		for (int i = 1; i < NODES; i++)
+			tr.update(points[i], i);
+		return tr;
+	}
+}
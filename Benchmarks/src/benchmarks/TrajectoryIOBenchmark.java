@@ -0,0 +1,116 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import trajectories.BinaryTrajectoryReader;
+import trajectories.BinaryTrajectoryWriter;
+import trajectories.PointDetection;
+import trajectories.Trajectory;
+import trajectories.XMLTrajectoryReader;
+import trajectories.XMLTrajectoryWriter;
+
+/**
+ * Write and read of a file of synthetic trajectories (random walks of the given number of nodes),
+ * in XML (streamed writer and reader) and in the binary format. Files are temporary files, so
+ * times include the writes to the file system cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TrajectoryIOBenchmark {
+
+	@Param({"1000", "10000"})
+	int trajectories;
+
+	@Param({"50"})
+	int nodes;
+
+	Trajectory[] data;
+	File xmlFile, binaryFile, outputFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, XMLStreamException {
+		Random random = new Random(0);
+		data = new Trajectory[trajectories];
+		for (int i = 0; i < trajectories; i++) {
+			double x = random.nextInt(1920), y = random.nextInt(1080);
+			Trajectory tr = new Trajectory(new PointDetection(x, y, 1), i, i);
+			for (int t = 1; t < nodes; t++) {
+				x += 2 + random.nextInt(3);
+				y += random.nextInt(5) - 2;
+				tr.update(new PointDetection(x, y, 1), i + t);
+			}
+			data[i] = tr;
+		}
+		xmlFile = File.createTempFile("trajectories", ".xml");
+		binaryFile = File.createTempFile("trajectories", ".trk");
+		outputFile = File.createTempFile("output", ".tmp");
+		XMLTrajectoryWriter xml = new XMLTrajectoryWriter(xmlFile.getPath());
+		BinaryTrajectoryWriter binary = new BinaryTrajectoryWriter(binaryFile.getPath());
+		for (Trajectory tr : data) {
+			xml.write(tr);
+			binary.write(tr);
+		}
+		xml.close();
+		binary.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		xmlFile.delete();
+		binaryFile.delete();
+		outputFile.delete();
+	}
+
+	@Benchmark
+	public void writeXML() throws IOException, XMLStreamException {
+		XMLTrajectoryWriter writer = new XMLTrajectoryWriter(outputFile.getPath());
+		for (Trajectory tr : data)
+			writer.write(tr);
+		writer.close();
+	}
+
+	@Benchmark
+	public int readXML() throws IOException, XMLStreamException {
+		XMLTrajectoryReader reader = new XMLTrajectoryReader(xmlFile.getPath());
+		int count = 0;
+		while (reader.hasNext())
+			count += reader.next().size();
+		reader.close();
+		return count;
+	}
+
+	@Benchmark
+	public void writeBinary() throws IOException {
+		BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(outputFile.getPath());
+		for (Trajectory tr : data)
+			writer.write(tr);
+		writer.close();
+	}
+
+	@Benchmark
+	public int readBinary() throws IOException {
+		BinaryTrajectoryReader reader = new BinaryTrajectoryReader(binaryFile.getPath());
+		int count = 0;
+		for (int i = 0; i < reader.size(); i++)
+			count += reader.read(i).size();
+		reader.close();
+		return count;
+	}
+}
@@ -0,0 +1,164 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.opencv.core.*;
+import org.opencv.highgui.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import trajectories.BinaryTrajectoryReader;
+import trajectories.BinaryTrajectoryWriter;
+import trajectories.CornerDetector;
+import trajectories.Frame;
+import trajectories.NullTrajectorySink;
+import trajectories.TrackingPipeline;
+import trajectories.Trajectories;
+import trajectories.Trajectory;
+
+/**
+ * Compare the sequential tracker (Trajectories.update for each image) with the pipelined one
+ * (TrackingPipeline), for the video in settings.xml: processing speed, and resulting trajectories,
+ * which must be the same. Then, measure the pipeline with frame skipping, where the frames that the
+ * tracker skips are not decoded nor given to the detection. Last, check that a pipeline whose
+ * detection fails stops and reports the error.
+ * Arguments: [number of frames] [frames in the pipeline]
+ */
+public class PipelineTest {
+
+	public static void main(String args[]) throws ParserConfigurationException, SAXException, IOException, InterruptedException {
+		int maxFrames = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		
+		//Open settings
+		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		Document document = builder.parse("settings.xml");
+		Element setVideo = (Element) document.getElementsByTagName("video").item(0);
+		String video = setVideo.getAttribute("path") + setVideo.getAttribute("file");
+		
+		//Sequential processing.
+		File sequentialFile = File.createTempFile("sequential", ".trk");
+		sequentialFile.deleteOnExit();
+		VideoCapture capture = new VideoCapture(video);
+		long start = System.nanoTime();
+		Mat image = new Mat();
+		capture.read(image);
+		Trajectories trajectories = new Trajectories(image, new BinaryTrajectoryWriter(sequentialFile.getPath()));
+		int count = 1;
+		while (count < maxFrames && capture.read(image) && !image.empty()) {
+			trajectories.update(image);
+			count++;
+		}
+		trajectories.close();
+		double sequentialTime = (System.nanoTime() - start) * 1e-9;
+		capture.release();
+		System.out.printf("Sequential: %d frames, %.1f frames/s%n", count, count / sequentialTime);
+		
+		//Pipelined processing.
+		File pipelineFile = File.createTempFile("pipeline", ".trk");
+		pipelineFile.deleteOnExit();
+		capture = new VideoCapture(video);
+		start = System.nanoTime();
+		TrackingPipeline pipeline = new TrackingPipeline(capture, new BinaryTrajectoryWriter(pipelineFile.getPath()), frames);
+		pipeline.setMaxFrames(maxFrames);
+		count = pipeline.run();
+		pipeline.getTrajectories().close();
+		double pipelineTime = (System.nanoTime() - start) * 1e-9;
+		capture.release();
+		System.out.printf("Pipeline: %d frames, %.1f frames/s (x%.2f)%n", count, count / pipelineTime,
+				sequentialTime / pipelineTime);
+		
+		//Compare trajectories (except identifiers, which are different for each tracker).
+		BinaryTrajectoryReader sequential = new BinaryTrajectoryReader(sequentialFile.getPath());
+		BinaryTrajectoryReader pipelined = new BinaryTrajectoryReader(pipelineFile.getPath());
+		int differences = Math.abs(sequential.size() - pipelined.size());
+		for (int i = 0; i < Math.min(sequential.size(), pipelined.size()); i++) {
+			if (!sameNodes(sequential.read(i), pipelined.read(i)))
+				differences++;
+		}
+		sequential.close();
+		pipelined.close();
+		System.out.printf("Trajectories: %d, differences: %d%n", sequential.size(), differences);
+		
+		//Frame skipping: speed against the pipeline without it, and frames given to the detection.
+		File skippingFile = File.createTempFile("skipping", ".trk");
+		skippingFile.deleteOnExit();
+		capture = new VideoCapture(video);
+		start = System.nanoTime();
+		TrackingPipeline skipping = new TrackingPipeline(capture, new BinaryTrajectoryWriter(skippingFile.getPath()), frames);
+		skipping.setMaxFrames(maxFrames);
+		skipping.setFrameSkip(8, 4, false);
+		final int[] detections = new int[1];
+		skipping.setDetector(new CornerDetector() {
+			@Override
+			public void detect(final Frame frame) {
+				detections[0]++;
+				super.detect(frame);
+			}
+		});
+		count = skipping.run();
+		skipping.getTrajectories().close();
+		double skippingTime = (System.nanoTime() - start) * 1e-9;
+		capture.release();
+		System.out.printf("Frame skipping: %d frames, %.1f frames/s (x%.2f), %d detected%n",
+				count, count / skippingTime, pipelineTime / skippingTime, detections[0]);
+		
+		//Failing detection: the pipeline must report the error, instead of waiting for the
+		//  decoding stage, which is blocked without free frames.
+		capture = new VideoCapture(video);
+		final TrackingPipeline failing = new TrackingPipeline(capture, new NullTrajectorySink(), 3);
+		failing.setMaxFrames(maxFrames);
+		failing.setDetector(new CornerDetector() {
+			int detected = 0;
+			@Override
+			public void detect(final Frame frame) {
+				if (++detected > 10)
+					throw new CvException("Detection failure");
+				super.detect(frame);
+			}
+		});
+		ExecutorService watchdog = Executors.newSingleThreadExecutor();
+		Future<Integer> run = watchdog.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return failing.run();
+			}
+		});
+		try {
+			count = run.get(30, TimeUnit.SECONDS);
+			System.out.printf("Failing detection: FAILED, %d frames without error%n", count);
+		} catch (ExecutionException e) {
+			System.out.printf("Failing detection: OK, %s%n", e.getCause());
+		} catch (TimeoutException e) {
+			System.out.println("Failing detection: FAILED, the pipeline is blocked");
+			run.cancel(true);
+		}
+		watchdog.shutdownNow();
+		capture.release();
+	}
+	
+	private static boolean sameNodes(final Trajectory a, final Trajectory b) {
+		if (a.size() != b.size())
+			return false;
+		for (int i = 0; i < a.size(); i++) {
+			if (a.getTime(i) != b.getTime(i) || a.getX(i) != b.getX(i) || a.getY(i) != b.getY(i)
+					|| a.getOctave(i) != b.getOctave(i))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,74 @@
+package tests;
+
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import org.opencv.core.*;
+import org.opencv.highgui.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import trajectories.Trajectories;
+import trajectories.XMLTrajectoryReader;
+
+/**
+ * Same processing than TrajectoriesTest, with the streamed XML output (finished trajectories are
+ * written to the file as they finish). The file is read back to check that it is complete.
+ */
+public class StreamingTrajectoriesTest {
+
+	public static void main(String args[]) throws ParserConfigurationException, SAXException, IOException, XMLStreamException{
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		VideoCapture video = new VideoCapture();
+
+		//Open settings XML
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		DocumentBuilder builder = factory.newDocumentBuilder();
+		Document document = builder.parse("settings.xml");
+		document.getDocumentElement().normalize();
+
+		//Open settings
+		NodeList settings = document.getElementsByTagName("video");
+		Element setVideo = (Element) settings.item(0);
+		String path = setVideo.getAttribute("path");
+		String file = setVideo.getAttribute("file");
+
+		//Open video
+		video.open(path+file);
+		if (!video.isOpened()) {
+			System.out.println("Error. Can not be open video");
+			return;
+		}
+		Mat image = new Mat();
+		video.read(image);
+		Trajectories trajectories = new Trajectories(image, "video-stream.xml");
+
+		int i = 0;
+		while (image.dims()>0) {
+			trajectories.update(image);
+			video.read(image);
+			i++;
+			if (i>=1000) break;
+		}
+
+		trajectories.close();
+		video.release();
+
+		//Read the file back.
+		XMLTrajectoryReader reader = new XMLTrajectoryReader("video-stream.xml");
+		int count = 0, nodes = 0;
+		while (reader.hasNext()) {
+			nodes += reader.next().size();
+			count++;
+		}
+		reader.close();
+		System.out.printf("Streamed output: %d frames, %d trajectories, %d nodes%n", i, count, nodes);
+	}
+}
@@ -0,0 +1,186 @@
+package tests;
+
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Deterministic synthetic video with known motion, for testing the tracker without real footage.
+ * The scene has a static textured background, textured square sprites that move with constant
+ * velocity and bounce at the image borders (each sprite drawn over the previous ones), and static
+ * uniform bars drawn over everything, which occlude the sprites that pass behind them. Sprites are
+ * drawn at whole pixel positions, so the true position of any point of the scene is exact.
+ * The same arguments always give the same video.
+ */
+public class SyntheticScene {
+
+	/**
+	 * Object returned by objectAt for the background and for the occluding bars.
+	 */
+	public static final int BACKGROUND = -1;
+	public static final int OCCLUDER = -2;
+	/**
+	 * Grey level of the occluding bars.
+	 */
+	private static final double OCCLUDER_LEVEL = 128;
+
+	public final int height, width;
+	/**
+	 * Background and sprite textures (grayscale).
+	 */
+	private final Mat background;
+	private final Mat[] textures;
+	/**
+	 * Side, initial position and velocity (pixels per frame) of each sprite.
+	 */
+	private final int[] sides;
+	private final double[] startX, startY, velocityX, velocityY;
+	/**
+	 * Occluding bars: vertical bars, given by their left and right columns.
+	 */
+	private final int[] barLeft, barRight;
+	/**
+	 * Grayscale image being drawn.
+	 */
+	private final Mat canvas;
+
+	/**
+	 * Constructor. Create the textures and the motion of the sprites.
+	 * @param height Height of the frames.
+	 * @param width Width of the frames.
+	 * @param sprites Number of moving sprites.
+	 * @param seed Seed of the scene.
+	 */
+	public SyntheticScene(final int height, final int width, final int sprites, final long seed) {
+		this.height = height;
+		this.width = width;
+		Random random = new Random(seed);
+		background = texture(height, width, 3, random);
+		textures = new Mat[sprites];
+		sides = new int[sprites];
+		startX = new double[sprites];
+		startY = new double[sprites];
+		velocityX = new double[sprites];
+		velocityY = new double[sprites];
+		int maxSide = Math.max(8, Math.min(height, width) / 8);
+		for (int i = 0; i < sprites; i++) {
+			sides[i] = maxSide/2 + random.nextInt(maxSide/2 + 1);
+			textures[i] = texture(sides[i], sides[i], 1, random);
+			startX[i] = random.nextInt(width - sides[i] + 1);
+			startY[i] = random.nextInt(height - sides[i] + 1);
+			velocityX[i] = 6*random.nextDouble() - 3;
+			velocityY[i] = 6*random.nextDouble() - 3;
+		}
+		//Two bars, at a third and at two thirds of the width.
+		int bar = Math.max(4, width / 20);
+		barLeft = new int[] {width/3 - bar/2, 2*width/3 - bar/2};
+		barRight = new int[] {width/3 + bar/2, 2*width/3 + bar/2};
+		canvas = new Mat(height, width, CvType.CV_8UC1);
+	}
+
+	/**
+	 * Random texture: uniform noise, blurred so that its corners are stable.
+	 */
+	private static Mat texture(final int rows, final int cols, final int blur, final Random random) {
+		byte[] data = new byte[rows*cols];
+		random.nextBytes(data);
+		Mat texture = new Mat(rows, cols, CvType.CV_8UC1);
+		texture.put(0, 0, data);
+		Imgproc.GaussianBlur(texture, texture, new Size(2*blur+1, 2*blur+1), blur);
+		return texture;
+	}
+
+	/**
+	 * Number of moving sprites.
+	 */
+	public int sprites() {
+		return textures.length;
+	}
+
+	/**
+	 * Position of a sprite (top-left corner) at a time: constant velocity, reflected at the
+	 * borders of the image, and rounded to whole pixels.
+	 */
+	public int spriteX(final int sprite, final int time) {
+		return (int) Math.round(reflect(startX[sprite] + velocityX[sprite]*time, width - sides[sprite]));
+	}
+
+	public int spriteY(final int sprite, final int time) {
+		return (int) Math.round(reflect(startY[sprite] + velocityY[sprite]*time, height - sides[sprite]));
+	}
+
+	/**
+	 * Reflect a coordinate into [0, range].
+	 */
+	private static double reflect(final double x, final double range) {
+		if (range <= 0)
+			return 0;
+		double period = 2*range;
+		double r = x % period;
+		if (r < 0)
+			r += period;
+		return r <= range ? r : period - r;
+	}
+
+	/**
+	 * Draw a frame of the video.
+	 * @param time Time of the frame.
+	 * @param image Output colour image (BGR), as read from a video.
+	 */
+	public void render(final int time, final Mat image) {
+		background.copyTo(canvas);
+		for (int i = 0; i < textures.length; i++) {
+			int x = spriteX(i, time), y = spriteY(i, time);
+			textures[i].copyTo(canvas.submat(y, y + sides[i], x, x + sides[i]));
+		}
+		for (int i = 0; i < barLeft.length; i++)
+			Core.rectangle(canvas, new Point(barLeft[i], 0), new Point(barRight[i], height - 1),
+					new Scalar(OCCLUDER_LEVEL), Core.FILLED);
+		Imgproc.cvtColor(canvas, image, Imgproc.COLOR_GRAY2BGR);
+	}
+
+	/**
+	 * Object seen at a position of a frame.
+	 * @param time Time of the frame.
+	 * @param x Column.
+	 * @param y Row.
+	 * @return OCCLUDER, the index of the sprite on top, or BACKGROUND.
+	 */
+	public int objectAt(final int time, final double x, final double y) {
+		int col = (int) Math.round(x), row = (int) Math.round(y);
+		for (int i = 0; i < barLeft.length; i++) {
+			if (col >= barLeft[i] && col <= barRight[i])
+				return OCCLUDER;
+		}
+		for (int i = textures.length - 1; i >= 0; i--) {
+			int left = spriteX(i, time), top = spriteY(i, time);
+			if (col >= left && col < left + sides[i] && row >= top && row < top + sides[i])
+				return i;
+		}
+		return BACKGROUND;
+	}
+
+	/**
+	 * Displacement of an object between two times (zero for the static ones).
+	 */
+	public int shiftX(final int object, final int from, final int to) {
+		return object < 0 ? 0 : spriteX(object, to) - spriteX(object, from);
+	}
+
+	public int shiftY(final int object, final int from, final int to) {
+		return object < 0 ? 0 : spriteY(object, to) - spriteY(object, from);
+	}
+
+	/**
+	 * Whether the centre of a sprite is visible in a frame.
+	 */
+	public boolean visible(final int sprite, final int time) {
+		return objectAt(time, spriteX(sprite, time) + sides[sprite]/2, spriteY(sprite, time) + sides[sprite]/2) == sprite;
+	}
+}
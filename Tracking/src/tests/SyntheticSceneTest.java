@@ -0,0 +1,142 @@
+package tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import trajectories.TrackerMetrics;
+import trajectories.Trajectories;
+import trajectories.Trajectory;
+import trajectories.TrajectorySink;
+
+/**
+ * Speed and accuracy of the tracker on a synthetic video (see SyntheticScene), so that changes
+ * to the tracker can be checked for both in one run.
+ * Speed: frames per second, median and 99th percentile of the time of each update (interest
+ * points and tracking, not drawing the frame), time of each stage (see TrackerMetrics), and
+ * number of active trajectories.
+ * Accuracy: each trajectory is assigned to the object seen at its first node, and each of its
+ * nodes is compared with the true position of that point of the object, if it is not hidden at
+ * that time (nodes where it is hidden are counted apart). Recall is the fraction of the frames
+ * where a sprite is visible, for which a trajectory of the sprite has a node at less than
+ * RECALL_ERROR pixels of the true position.
+ * With a maximum skip larger than 1, frames are skipped (see Trajectories.setFrameSkip), with
+ * interpolated nodes. With a scale larger than 1, the frames are processed at a reduced
+ * resolution (see CornerDetector.setScale), and trajectories are compared at the full one.
+ * Arguments: [number of frames] [number of sprites] [height] [seed] [maximum skip] [scale]
+ */
+public class SyntheticSceneTest {
+
+	/**
+	 * Maximum position error of a correct node (pixels).
+	 */
+	static final double RECALL_ERROR = 2;
+
+	public static void main(String args[]) throws ParserConfigurationException, IOException {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		int sprites = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int height = args.length > 2 ? Integer.parseInt(args[2]) : 480;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+		int maxSkip = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		int scale = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		SyntheticScene scene = new SyntheticScene(height, height*4/3, sprites, seed);
+
+		//Track the video, keeping all the finished trajectories.
+		final ArrayList<Trajectory> output = new ArrayList<Trajectory>();
+		TrajectorySink sink = new TrajectorySink() {
+			@Override
+			public void accept(final Trajectory trajectory) {
+				output.add(trajectory);
+			}
+			@Override
+			public void flush() {
+			}
+			@Override
+			public void close() {
+			}
+		};
+		Mat image = new Mat();
+		scene.render(0, image);
+		Trajectories trajectories = new Trajectories(image, sink, scale);
+		TrackerMetrics metrics = new TrackerMetrics();
+		trajectories.setMetrics(metrics);
+		if (maxSkip > 1)
+			trajectories.setFrameSkip(maxSkip, 4, true);
+		long[] latencies = new long[frames - 1];
+		long active = 0;
+		for (int t = 1; t < frames; t++) {
+			scene.render(t, image);
+			long start = System.nanoTime();
+			trajectories.update(image);
+			latencies[t-1] = System.nanoTime() - start;
+			active += trajectories.size();
+		}
+		int last = trajectories.size();
+		trajectories.close();
+		long total = 0;
+		for (long latency : latencies)
+			total += latency;
+		Arrays.sort(latencies);
+		System.out.printf("Speed: %d frames, %.1f frames/s, latency p50 %.2f ms, p99 %.2f ms%n", frames,
+				(frames - 1) / (total * 1e-9), latencies[latencies.length/2] * 1e-6,
+				latencies[(int) Math.ceil(0.99*latencies.length) - 1] * 1e-6);
+		System.out.printf("Trajectories: %.1f active per frame (%d at the end), %d finished%n",
+				(double) active / (frames - 1), last, output.size());
+		for (String stage : metrics.getStages())
+			System.out.println("  " + stage);
+
+		//Compare the nodes with the true positions.
+		boolean[][] covered = new boolean[sprites][frames];
+		double[] errors = new double[16];
+		int count = 0, hidden = 0;
+		for (Trajectory tr : output) {
+			int t0 = tr.getTime(0);
+			double x0 = tr.getX(0), y0 = tr.getY(0);
+			int object = scene.objectAt(t0, x0, y0);
+			for (int i = 0; i < tr.size(); i++) {
+				int t = tr.getTime(i);
+				double x = x0 + scene.shiftX(object, t0, t), y = y0 + scene.shiftY(object, t0, t);
+				if (scene.objectAt(t, x, y) != object) {
+					hidden++;
+					continue;
+				}
+				double error = Math.hypot(tr.getX(i) - x, tr.getY(i) - y);
+				if (count == errors.length)
+					errors = Arrays.copyOf(errors, 2*count);
+				errors[count++] = error;
+				if (object >= 0 && error <= RECALL_ERROR)
+					covered[object][t] = true;
+			}
+		}
+		int visible = 0, recalled = 0;
+		for (int i = 0; i < sprites; i++) {
+			for (int t = 0; t < frames; t++) {
+				if (scene.visible(i, t)) {
+					visible++;
+					if (covered[i][t])
+						recalled++;
+				}
+			}
+		}
+		Arrays.sort(errors, 0, count);
+		double sum = 0;
+		int inliers = 0;
+		for (int i = 0; i < count; i++) {
+			sum += errors[i];
+			if (errors[i] <= RECALL_ERROR)
+				inliers++;
+		}
+		System.out.printf("Recall: %.3f (%d of %d visible sprite frames)%n", (double) recalled / Math.max(1, visible),
+				recalled, visible);
+		if (count > 0)
+			System.out.printf("Position error: mean %.2f, p50 %.2f, p95 %.2f px, %.3f of %d nodes within %.0f px, %d hidden nodes%n",
+					sum / count, errors[count/2], errors[(int) Math.ceil(0.95*count) - 1],
+					(double) inliers / count, count, RECALL_ERROR, hidden);
+	}
+}
@@ -0,0 +1,82 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import trajectories.PointDetection;
+import trajectories.Trajectory;
+import trajectories.XMLTrajectoryReader;
+import trajectories.XMLTrajectoryWriter;
+
+/**
+ * Compare the DOM and the streamed readers of trajectory files. A synthetic file is written with
+ * the streamed writer, and then read several times with both readers.
+ * Arguments: [number of trajectories] [nodes per trajectory] [repetitions]
+ */
+public class XMLReaderBenchmark {
+
+	public static void main(String args[]) throws IOException, XMLStreamException, ParserConfigurationException, SAXException {
+		int trajectories = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		//Write synthetic trajectories (random walks, so that no node is merged as static).
+		File file = File.createTempFile("trajectories", ".xml");
+		file.deleteOnExit();
+		Random random = new Random(0);
+		XMLTrajectoryWriter writer = new XMLTrajectoryWriter(file.getPath());
+		for (int i = 0; i < trajectories; i++) {
+			double x = random.nextInt(1920), y = random.nextInt(1080);
+			Trajectory tr = new Trajectory(new PointDetection(x, y, 1), i);
+			for (int t = 1; t < nodes; t++) {
+				x += 2 + random.nextInt(3);
+				y += random.nextInt(5) - 2;
+				tr.update(new PointDetection(x, y, 1), i + t);
+			}
+			writer.write(tr);
+		}
+		writer.close();
+		double megabytes = file.length() / (1024.0 * 1024.0);
+		System.out.printf("File: %.1f MB, %d trajectories, %d nodes%n", megabytes, trajectories, nodes);
+
+		for (int r = 0; r < repetitions; r++) {
+			//DOM reader: parse the whole document, then build each trajectory.
+			long start = System.nanoTime();
+			DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			Document document = builder.parse(file);
+			NodeList list = document.getElementsByTagName("Trajectory");
+			int domCount = 0;
+			for (int i = 0; i < list.getLength(); i++) {
+				if (Trajectory.ReadXMLTrajectory(list.item(i)) != null)
+					domCount++;
+			}
+			double domTime = (System.nanoTime() - start) * 1e-9;
+			document = null;
+			list = null;
+
+			//Streamed reader.
+			start = System.nanoTime();
+			XMLTrajectoryReader reader = new XMLTrajectoryReader(file.getPath());
+			int staxCount = 0;
+			while (reader.hasNext()) {
+				reader.next();
+				staxCount++;
+			}
+			reader.close();
+			double staxTime = (System.nanoTime() - start) * 1e-9;
+
+			System.out.printf("DOM: %d in %.3f s (%.1f MB/s)   StAX: %d in %.3f s (%.1f MB/s)%n",
+					domCount, domTime, megabytes / domTime, staxCount, staxTime, megabytes / staxTime);
+		}
+	}
+}
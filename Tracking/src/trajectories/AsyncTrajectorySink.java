@@ -0,0 +1,264 @@
+package trajectories;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sink that passes the finished trajectories to another sink (for instance, an output file) in a
+ * background thread, so that the tracker only puts them in a bounded queue, and does not wait for
+ * the output. When the queue is full, the policy decides what to do with a new trajectory:
+ * - BLOCK: wait for room in the queue, so no trajectory is lost, but the tracker is slowed down to
+ *   the speed of the output.
+ * - DROP: discard it (see getDropped).
+ * - SPILL: write it to a temporary binary file, in the calling thread (a compact record, without
+ *   formatting), and pass it to the sink when this one is closed (see getSpilled). The output keeps
+ *   all the trajectories, but not in the order they finished.
+ *
+ * The functions of this class must be called from a single thread (the one of the tracker).
+ * Errors of the destination sink are reported in the next call.
+ */
+public class AsyncTrajectorySink implements TrajectorySink {
+
+	/**
+	 * Policies for a full queue.
+	 */
+	public static final int BLOCK = 0;
+	public static final int DROP = 1;
+	public static final int SPILL = 2;
+	/**
+	 * Maximum time in milliseconds that the threads wait without checking the state of the other.
+	 */
+	private static final long POLL_TIME = 50;
+
+	/**
+	 * Destination of the trajectories, used by the background thread.
+	 */
+	private final TrajectorySink target;
+	/**
+	 * Trajectories waiting for the background thread.
+	 */
+	private final ArrayBlockingQueue<Trajectory> queue;
+	/**
+	 * Policy for a full queue.
+	 */
+	private final int policy;
+	/**
+	 * Background thread.
+	 */
+	private final Thread thread;
+	/**
+	 * Number of trajectories queued, and passed to the destination sink. The second one is
+	 * guarded by the object itself, and notified to flush.
+	 */
+	private long queued;
+	private long done;
+	/**
+	 * Number of discarded and spilled trajectories.
+	 */
+	private volatile long dropped;
+	private volatile long spilled;
+	/**
+	 * Temporary file for the spilled trajectories (SPILL policy).
+	 */
+	private File spillFile;
+	private BinaryTrajectoryWriter spillWriter;
+	/**
+	 * State: set when the sink is closed, and with the first error of the destination sink.
+	 */
+	private volatile boolean closed;
+	private volatile Throwable error;
+
+	/**
+	 * Constructor. Start the background thread.
+	 * @param target Destination of the trajectories.
+	 * @param capacity Maximum number of trajectories waiting in the queue.
+	 * @param policy Policy for a full queue: BLOCK, DROP or SPILL.
+	 * @throws IOException If the temporary file of the SPILL policy can not be created.
+	 */
+	public AsyncTrajectorySink(final TrajectorySink target, final int capacity, final int policy) throws IOException {
+		if (target == null)
+			throw new IllegalArgumentException("No destination sink");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		if (policy != BLOCK && policy != DROP && policy != SPILL)
+			throw new IllegalArgumentException("Invalid policy: " + policy);
+		this.target = target;
+		this.policy = policy;
+		queue = new ArrayBlockingQueue<Trajectory>(capacity);
+		//Create the temporary file in advance, out of the frame loop.
+		if (policy == SPILL) {
+			spillFile = File.createTempFile("trajectories", ".spill");
+			spillFile.deleteOnExit();
+			spillWriter = new BinaryTrajectoryWriter(spillFile.getPath());
+		}
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "trajectory-sink");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue a finished trajectory, or apply the policy if the queue is full.
+	 * @param trajectory Finished trajectory.
+	 * @throws IOException If the sink is closed, or the destination sink failed.
+	 */
+	@Override
+	public void accept(final Trajectory trajectory) throws IOException {
+		check();
+		if (closed)
+			throw new IOException("Sink closed");
+		if (!queue.offer(trajectory)) {
+			switch (policy) {
+			case BLOCK:
+				try {
+					//Check the background thread while waiting, since it stops with an error.
+					while (!queue.offer(trajectory, POLL_TIME, TimeUnit.MILLISECONDS))
+						check();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+				break;
+			case DROP:
+				dropped++;
+				return;
+			case SPILL:
+				spillWriter.write(trajectory);
+				spilled++;
+				return;
+			}
+		}
+		queued++;
+	}
+
+	/**
+	 * Wait for the queued trajectories to be passed to the destination sink, and flush it. The
+	 * spilled trajectories are not passed until the sink is closed.
+	 * @throws IOException If the destination sink failed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		await();
+		//The background thread is waiting for trajectories, so the destination can be used here.
+		synchronized (this) {
+			target.flush();
+		}
+	}
+
+	/**
+	 * Wait for the queued trajectories to be passed to the destination sink, stop the background
+	 * thread, pass the spilled trajectories, and close the destination sink.
+	 * @throws IOException If the destination sink failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		//The background thread stops when the queue is empty.
+		closed = true;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		try {
+			check();
+			if (spillWriter != null) {
+				spillWriter.close();
+				BinaryTrajectoryReader reader = new BinaryTrajectoryReader(spillFile.getPath());
+				try {
+					for (int i = 0; i < reader.size(); i++)
+						target.accept(reader.read(i));
+				} finally {
+					reader.close();
+				}
+			}
+		} finally {
+			target.close();
+			if (spillFile != null)
+				spillFile.delete();
+		}
+	}
+
+	/**
+	 * Number of trajectories discarded because the queue was full (DROP policy).
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Number of trajectories written to the temporary file because the queue was full (SPILL
+	 * policy).
+	 */
+	public long getSpilled() {
+		return spilled;
+	}
+
+	/**
+	 * Number of trajectories waiting in the queue.
+	 */
+	public int getPending() {
+		return queue.size();
+	}
+
+	/**
+	 * Background thread: pass the queued trajectories to the destination sink, until the sink is
+	 * closed and the queue is empty, or the destination sink fails.
+	 */
+	private void drain() {
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Trajectory trajectory = queue.poll(POLL_TIME, TimeUnit.MILLISECONDS);
+				if (trajectory == null)
+					continue;
+				synchronized (this) {
+					target.accept(trajectory);
+					done++;
+					notifyAll();
+				}
+			}
+		} catch (Throwable e) {
+			synchronized (this) {
+				error = e;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait until all the queued trajectories have been passed to the destination sink.
+	 * @throws IOException If the destination sink failed.
+	 */
+	private void await() throws IOException {
+		synchronized (this) {
+			try {
+				while (done < queued && error == null)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+		check();
+	}
+
+	/**
+	 * Report the error of the destination sink, if any.
+	 * @throws IOException
+	 */
+	private void check() throws IOException {
+		Throwable e = error;
+		if (e instanceof IOException)
+			throw new IOException(e.getMessage(), e);
+		if (e != null)
+			throw new IllegalStateException(e);
+	}
+}
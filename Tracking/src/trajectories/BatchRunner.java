@@ -0,0 +1,204 @@
+package trajectories;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+import org.opencv.highgui.VideoCapture;
+
+/**
+ * Processing of many videos in the same process. Each video is processed by its own tracker
+ * (with its own trajectory IDs) in a TrackingPipeline, and written to its own output file. Several
+ * videos are processed at the same time: the tracking stages run in a fixed pool of threads, one
+ * for each video in process, and the decoding and detection stages in a shared pool of threads,
+ * which mostly wait for input or for the next stage. The number of frames in memory is bounded by
+ * the number of videos in process and the frames of each pipeline.
+ */
+public class BatchRunner {
+
+	/**
+	 * Result of the processing of a video.
+	 */
+	public static class Result {
+		/**
+		 * Input video and output file.
+		 */
+		public final String video, output;
+		/**
+		 * Number of frames of the video, including the ones skipped by the tracker.
+		 */
+		public int frames;
+		/**
+		 * Processing time, in seconds.
+		 */
+		public double seconds;
+		/**
+		 * Error of the processing, or null if the video was processed.
+		 */
+		public Throwable error;
+		
+		Result(final String video, final String output) {
+			this.video = video;
+			this.output = output;
+		}
+	}
+	
+	/**
+	 * Number of videos processed at the same time.
+	 */
+	private final int sessions;
+	/**
+	 * Frames of each pipeline.
+	 */
+	private final int frames;
+	/**
+	 * Maximum number of finished trajectories of each video waiting to be written. Files are
+	 * written in a background thread for each video (see AsyncTrajectorySink).
+	 */
+	private static final int SINK_CAPACITY = 4096;
+	/**
+	 * Frame skipping of the trackers (see TrackingPipeline.setFrameSkip).
+	 */
+	private int maxSkip = 1;
+	private double skipMotion = 4;
+	private boolean interpolate;
+	
+	/**
+	 * Constructor.
+	 * @param sessions Number of videos processed at the same time.
+	 * @param frames Frames in process for each video (see TrackingPipeline), at least 3. At most
+	 * sessions*frames frames are in memory at the same time.
+	 */
+	public BatchRunner(final int sessions, final int frames) {
+		if (sessions < 1)
+			throw new IllegalArgumentException("Sessions must be positive: " + sessions);
+		if (frames < 3)
+			throw new IllegalArgumentException("At least 3 frames are needed: " + frames);
+		this.sessions = sessions;
+		this.frames = frames;
+	}
+	
+	/**
+	 * Set the frame skipping of the trackers (see Trajectories.setFrameSkip). The frames that a
+	 * tracker skips are discarded without decoding them.
+	 * @param maxSkip Maximum number of frames between processed frames (1 to disable the mode).
+	 * @param motion Maximum motion between processed frames, in pixels.
+	 * @param interpolate true to add to the trajectories a node for each skipped frame.
+	 */
+	public void setFrameSkip(final int maxSkip, final double motion, final boolean interpolate) {
+		if (maxSkip < 1 || motion <= 0)
+			throw new IllegalArgumentException("Invalid frame skipping: " + maxSkip + ", " + motion);
+		this.maxSkip = maxSkip;
+		this.skipMotion = motion;
+		this.interpolate = interpolate;
+	}
+	
+	/**
+	 * Process a list of videos. Errors in a video do not stop the processing of the others; they
+	 * are given in its result.
+	 * @param videos Input videos.
+	 * @param outputs Output file for each video. Files ending in .xml are written in XML, the rest
+	 * in binary format.
+	 * @return Result for each video, in the same order.
+	 * @throws InterruptedException
+	 */
+	public List<Result> run(final List<String> videos, final List<String> outputs) throws InterruptedException {
+		if (videos.size() != outputs.size())
+			throw new IllegalArgumentException("There must be an output for each video");
+		ExecutorService tracking = Executors.newFixedThreadPool(sessions);
+		final ExecutorService stages = Executors.newCachedThreadPool();
+		try {
+			ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (int i = 0; i < videos.size(); i++) {
+				final Result result = new Result(videos.get(i), outputs.get(i));
+				futures.add(tracking.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						process(result, stages);
+						return result;
+					}
+				}));
+			}
+			ArrayList<Result> results = new ArrayList<Result>();
+			for (Future<Result> f : futures) {
+				try {
+					results.add(f.get());
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			tracking.shutdownNow();
+			stages.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Process a video, storing the result.
+	 */
+	private void process(final Result result, final ExecutorService stages) {
+		long start = System.nanoTime();
+		VideoCapture video = new VideoCapture();
+		try {
+			if (!video.open(result.video))
+				throw new IOException("Can not open video " + result.video);
+			TrajectoryWriter writer = result.output.endsWith(".xml") ?
+					new XMLTrajectoryWriter(result.output) : new BinaryTrajectoryWriter(result.output);
+			TrajectorySink sink = new AsyncTrajectorySink(writer, SINK_CAPACITY, AsyncTrajectorySink.BLOCK);
+			//The output is closed whatever fails after it is opened, also the pipeline setup.
+			TrackingPipeline pipeline = null;
+			try {
+				pipeline = new TrackingPipeline(video, sink, frames);
+				pipeline.setStageExecutor(stages);
+				pipeline.setFrameSkip(maxSkip, skipMotion, interpolate);
+				result.frames = pipeline.run();
+			} finally {
+				if (pipeline != null && pipeline.getTrajectories() != null)
+					pipeline.getTrajectories().close();
+				else
+					sink.close();
+			}
+		} catch (Exception e) {
+			result.error = e;
+		} finally {
+			video.release();
+			result.seconds = (System.nanoTime()-start)*1e-9;
+		}
+	}
+	
+	public static void main(String args[]) throws InterruptedException {
+		if (args.length < 3) {
+			System.out.println("Usage: BatchRunner sessions outputDirectory video...");
+			return;
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int sessions = Integer.parseInt(args[0]);
+		File directory = new File(args[1]);
+		ArrayList<String> videos = new ArrayList<String>();
+		ArrayList<String> outputs = new ArrayList<String>();
+		for (int i = 2; i < args.length; i++) {
+			videos.add(args[i]);
+			outputs.add(new File(directory, new File(args[i]).getName() + ".trk").getPath());
+		}
+		long start = System.nanoTime();
+		List<Result> results = new BatchRunner(sessions, 8).run(videos, outputs);
+		double seconds = (System.nanoTime()-start)*1e-9;
+		int total = 0;
+		for (Result r : results) {
+			if (r.error != null)
+				System.out.println(r.video + ": " + r.error);
+			else
+				System.out.printf("%s: %d frames, %.1f frames/s%n", r.video, r.frames, r.frames/r.seconds);
+			total += r.frames;
+		}
+		System.out.printf("Total: %d frames, %.1f frames/s%n", total, total/seconds);
+	}
+}
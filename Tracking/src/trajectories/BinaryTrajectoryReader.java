@@ -0,0 +1,142 @@
+package trajectories;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader for binary trajectory files (see BinaryTrajectoryWriter). The file is memory mapped, and
+ * the index at the end of the file gives direct access to each trajectory, without reading the
+ * previous ones.
+ */
+public class BinaryTrajectoryReader implements Closeable {
+
+	/**
+	 * Input file.
+	 */
+	private RandomAccessFile file;
+	private FileChannel channel;
+	/**
+	 * Mapped file content. Files larger than a ByteBuffer are not mapped at once; in that case,
+	 * this is null, and each record is mapped when it is read.
+	 */
+	private MappedByteBuffer data;
+	/**
+	 * Mapped index of the file.
+	 */
+	private MappedByteBuffer index;
+	/**
+	 * Offset of the index in the file (that is, end of the last record).
+	 */
+	private long indexOffset;
+	/**
+	 * Number of trajectories in the file.
+	 */
+	private int count;
+
+	/**
+	 * Constructor. Open the file and map its index.
+	 * @param videoFile Name of the binary file.
+	 * @throws IOException
+	 */
+	public BinaryTrajectoryReader(final String videoFile) throws IOException {
+		file = new RandomAccessFile(videoFile, "r");
+		channel = file.getChannel();
+		long size = channel.size();
+		if (size < BinaryTrajectoryWriter.HEADER_SIZE+BinaryTrajectoryWriter.TRAILER_SIZE) {
+			close();
+			throw new IOException("Not a binary trajectory file: " + videoFile);
+		}
+		//Read header and trailer.
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryTrajectoryWriter.HEADER_SIZE);
+		ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY,
+				size-BinaryTrajectoryWriter.TRAILER_SIZE, BinaryTrajectoryWriter.TRAILER_SIZE);
+		indexOffset = trailer.getLong();
+		count = trailer.getInt();
+		if (header.getInt() != BinaryTrajectoryWriter.MAGIC || trailer.getInt() != BinaryTrajectoryWriter.MAGIC) {
+			close();
+			throw new IOException("Not a binary trajectory file: " + videoFile);
+		}
+		if (header.getInt() != BinaryTrajectoryWriter.VERSION) {
+			close();
+			throw new IOException("Unsupported binary trajectory file version: " + videoFile);
+		}
+		//Map the index, and the records if possible.
+		index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+				(long) count*BinaryTrajectoryWriter.INDEX_ENTRY_SIZE);
+		if (indexOffset <= Integer.MAX_VALUE)
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, indexOffset);
+	}
+
+	/**
+	 * Number of trajectories in the file.
+	 * @return number of trajectories
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * ID of the given trajectory, read from the index.
+	 * @param i Position of the trajectory in the file.
+	 * @return ID
+	 */
+	public int getID(final int i) {
+		return index.getInt(i*BinaryTrajectoryWriter.INDEX_ENTRY_SIZE+8);
+	}
+
+	/**
+	 * Starting time of the given trajectory, read from the index.
+	 * @param i Position of the trajectory in the file.
+	 * @return starting time
+	 */
+	public int getStart(final int i) {
+		return index.getInt(i*BinaryTrajectoryWriter.INDEX_ENTRY_SIZE+12);
+	}
+
+	/**
+	 * Ending time of the given trajectory, read from the index.
+	 * @param i Position of the trajectory in the file.
+	 * @return ending time
+	 */
+	public int getEnd(final int i) {
+		return index.getInt(i*BinaryTrajectoryWriter.INDEX_ENTRY_SIZE+16);
+	}
+
+	/**
+	 * Read the given trajectory.
+	 * @param i Position of the trajectory in the file.
+	 * @return The trajectory
+	 * @throws IOException
+	 */
+	public Trajectory read(final int i) throws IOException {
+		if (i < 0 || i >= count)
+			throw new IndexOutOfBoundsException("Trajectory " + i + " of " + count);
+		//The record ends where the next one (or the index) starts.
+		long start = getOffset(i);
+		long end = i+1 < count ? getOffset(i+1) : indexOffset;
+		ByteBuffer record;
+		if (data != null) {
+			record = data.duplicate();
+			record.limit((int) end);
+			record.position((int) start);
+		}
+		else
+			record = channel.map(FileChannel.MapMode.READ_ONLY, start, end-start);
+		return Trajectory.ReadBinaryTrajectory(record);
+	}
+
+	@Override
+	public void close() throws IOException {
+		data = null;
+		index = null;
+		file.close();
+	}
+
+	private long getOffset(final int i) {
+		return index.getLong(i*BinaryTrajectoryWriter.INDEX_ENTRY_SIZE);
+	}
+}
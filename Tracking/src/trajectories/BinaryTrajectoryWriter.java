@@ -0,0 +1,148 @@
+package trajectories;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Binary output for the trajectories of a video. This is a compact alternative to the XML file:
+ * each trajectory is written as a record of variable length integers (see
+ * Trajectory.writeBinary), and an index with the offset and time span of each trajectory is
+ * appended at the end of the file, so that single trajectories can be read without scanning the
+ * file (see BinaryTrajectoryReader).
+ * 
+ * The format is lossy for coordinates: they are rounded to 1/256 pixel (see
+ * Trajectory.BINARY_SCALE), that is, an error of at most 1/512 pixel. Integer and half pixel
+ * positions (detected corners, also at reduced resolution) are stored exactly, but not the
+ * fractional ones of optical flow (incremental mode) and interpolated nodes (frame skipping), so
+ * an XML file converted to binary and back is not identical for those. Times, IDs and octaves are
+ * stored exactly.
+ * 
+ * File layout:
+ *   header:  MAGIC (int), VERSION (int)
+ *   records: one per trajectory
+ *   index:   offset (long), ID (int), start (int), end (int), for each trajectory
+ *   trailer: index offset (long), number of trajectories (int), MAGIC (int)
+ */
+public class BinaryTrajectoryWriter implements TrajectoryWriter {
+
+	/**
+	 * Identifier of the file format ("TRKB").
+	 */
+	static final int MAGIC = 0x54524B42;
+	/**
+	 * Version of the file format.
+	 */
+	static final int VERSION = 1;
+	/**
+	 * Size in bytes of the header, of each index entry and of the trailer.
+	 */
+	static final int HEADER_SIZE = 8;
+	static final int INDEX_ENTRY_SIZE = 20;
+	static final int TRAILER_SIZE = 16;
+
+	/**
+	 * Output file.
+	 */
+	private FileChannel channel;
+	/**
+	 * Buffer for the data not written to the file yet.
+	 */
+	private ByteBuffer buffer;
+	/**
+	 * Number of bytes already written to the file.
+	 */
+	private long written;
+	/**
+	 * Index data for the trajectories written: offset in the file, ID and time span.
+	 */
+	private long[] offsets;
+	private int[] ids, starts, ends;
+	/**
+	 * Number of trajectories written.
+	 */
+	private int count;
+
+	/**
+	 * Constructor. Create the output file and write the header.
+	 * @param videoFile Name of the binary file.
+	 * @throws IOException
+	 */
+	public BinaryTrajectoryWriter(final String videoFile) throws IOException {
+		channel = new FileOutputStream(videoFile).getChannel();
+		buffer = ByteBuffer.allocate(1 << 16);
+		written = 0;
+		offsets = new long[1024];
+		ids = new int[1024];
+		starts = new int[1024];
+		ends = new int[1024];
+		count = 0;
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+	}
+
+	@Override
+	public void write(final Trajectory trajectory) throws IOException {
+		//Make room for the trajectory record.
+		int size = trajectory.maxBinarySize();
+		if (buffer.remaining() < size) {
+			flush();
+			if (buffer.capacity() < size)
+				buffer = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+		}
+		if (count == offsets.length) {
+			int length = 2*count;
+			offsets = Arrays.copyOf(offsets, length);
+			ids = Arrays.copyOf(ids, length);
+			starts = Arrays.copyOf(starts, length);
+			ends = Arrays.copyOf(ends, length);
+		}
+		//Store index data, and the record.
+		offsets[count] = written+buffer.position();
+		ids[count] = trajectory.getID();
+		starts[count] = trajectory.start();
+		ends[count] = trajectory.end();
+		count++;
+		trajectory.writeBinary(buffer);
+	}
+
+	@Override
+	public void accept(final Trajectory trajectory) throws IOException {
+		write(trajectory);
+	}
+
+	@Override
+	public void close() throws IOException {
+		//Write the index and the trailer after the last record.
+		long indexOffset = written+buffer.position();
+		for (int i = 0; i < count; i++) {
+			if (buffer.remaining() < INDEX_ENTRY_SIZE)
+				flush();
+			buffer.putLong(offsets[i]);
+			buffer.putInt(ids[i]);
+			buffer.putInt(starts[i]);
+			buffer.putInt(ends[i]);
+		}
+		if (buffer.remaining() < TRAILER_SIZE)
+			flush();
+		buffer.putLong(indexOffset);
+		buffer.putInt(count);
+		buffer.putInt(MAGIC);
+		flush();
+		channel.close();
+	}
+
+	/**
+	 * Write the buffer content to the file.
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			written += channel.write(buffer);
+		buffer.clear();
+	}
+}
@@ -0,0 +1,309 @@
+package trajectories;
+
+import java.util.Arrays;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Interest point detection for the tracker. Computes the grayscale image of a frame, and the
+ * interest points (corners) in it. The detection does not depend on the trajectories, so it can
+ * run for the next frames while the tracker processes the current one, with one detector for
+ * each thread.
+ */
+public class CornerDetector {
+
+	/**
+	 * Maximum number of interest points for each frame.
+	 */
+	public static final int MAX_CORNERS = 200;
+	/**
+	 * Minimum quality of the interest points, relative to the best one.
+	 */
+	public static final double QUALITY = 0.01;
+	/**
+	 * Minimum distance between interest points.
+	 */
+	public static final double MIN_DISTANCE = 4;
+	
+	/**
+	 * Maximum number of interest points of this detector (MAX_CORNERS by default).
+	 */
+	int maxCorners = MAX_CORNERS;
+	
+	/**
+	 * Reduction of the processed images (1 for the full resolution), and working image for it.
+	 */
+	int scale = 1;
+	private Mat reduced = new Mat();
+	
+	/**
+	 * Regions of interest (null for the whole image), and their data for the current image size:
+	 * processed part of the image (bounding rectangle of the regions, in pixels of the colour
+	 * image), mask of the regions in the processed image, bounds of each region in it, and mask
+	 * combined with the one given to findCorners.
+	 */
+	Region[] regions;
+	private Rect crop;
+	private int imageWidth = -1, imageHeight = -1;
+	private Mat regionMask = new Mat();
+	private Rect[] regionBounds;
+	private Mat combinedMask = new Mat();
+	private int[] regionCorners = new int[0];
+	
+	/**
+	 * Working data for the detection, kept between frames.
+	 */
+	private MatOfPoint crn = new MatOfPoint();
+	
+	/**
+	 * Set the maximum number of interest points for each frame (for instance, to reduce the
+	 * detection time, see QualityController).
+	 * @param maxCorners Maximum number of interest points.
+	 */
+	public void setMaxCorners(final int maxCorners) {
+		if (maxCorners < 1)
+			throw new IllegalArgumentException("Maximum number of corners must be positive: " + maxCorners);
+		this.maxCorners = maxCorners;
+	}
+	
+	/**
+	 * Maximum number of interest points for each frame.
+	 */
+	public int getMaxCorners() {
+		return maxCorners;
+	}
+	
+	/**
+	 * Set the reduction of the processed images: the grayscale image of the frames (and so the
+	 * interest points, and the tracking) is computed at 1/scale of the resolution of the colour
+	 * image, so that the processing time is reduced by scale^2. For an exact mapping of the
+	 * coordinates back to the full resolution, the size of the images must be a multiple of it.
+	 * @param scale Reduction: 1 (full resolution), 2, 4 or 8.
+	 */
+	public void setScale(final int scale) {
+		if (scale < 1 || scale > 8 || Integer.bitCount(scale) != 1)
+			throw new IllegalArgumentException("Scale must be 1, 2, 4 or 8: " + scale);
+		this.scale = scale;
+		imageWidth = -1;
+	}
+	
+	/**
+	 * Set the regions of interest. Only the bounding rectangle of the regions is processed (the
+	 * grayscale image of the frames is the one of that part of the image, see Frame.offsetX), and
+	 * interest points are only searched inside the regions, in each one separately, with a part of
+	 * the maximum number of points proportional to its area.
+	 * The detection cost follows the area of the regions, but the cost of the grayscale conversion
+	 * and of the tracking (image pyramids of the optical flow) follows the area of the bounding
+	 * rectangle of all of them: regions far apart (for instance, in opposite corners of the image)
+	 * save little of it, and are better processed by a tracker for each one.
+	 * @param regions Regions of interest, in pixels of the colour image (none for the whole image).
+	 */
+	public void setRegions(final Region... regions) {
+		this.regions = regions == null || regions.length == 0 ? null : regions.clone();
+		imageWidth = -1;
+	}
+	
+	/**
+	 * Regions of interest (null for the whole image).
+	 */
+	public Region[] getRegions() {
+		return regions == null ? null : regions.clone();
+	}
+	
+	/**
+	 * Compute the processed part of the images, the mask of the regions and their bounds, for
+	 * the given image size. The processed part is aligned to the scale.
+	 */
+	private void prepareRegions(final int width, final int height) {
+		if (width == imageWidth && height == imageHeight)
+			return;
+		int left = width, top = height, right = 0, bottom = 0;
+		for (Region region : regions) {
+			Rect b = region.bounds();
+			left = Math.min(left, Math.max(b.x, 0));
+			top = Math.min(top, Math.max(b.y, 0));
+			right = Math.max(right, Math.min(b.x+b.width, width));
+			bottom = Math.max(bottom, Math.min(b.y+b.height, height));
+		}
+		left = left/scale*scale;
+		top = top/scale*scale;
+		right = Math.min((right+scale-1)/scale*scale, width/scale*scale);
+		bottom = Math.min((bottom+scale-1)/scale*scale, height/scale*scale);
+		if (right <= left || bottom <= top)
+			throw new IllegalArgumentException("Regions of interest outside the image");
+		crop = new Rect(left, top, right-left, bottom-top);
+		//Mask and bounds of the regions, in the processed image.
+		int cols = crop.width/scale, rows = crop.height/scale;
+		regionMask.create(rows, cols, CvType.CV_8UC1);
+		regionMask.setTo(new Scalar(0));
+		regionBounds = new Rect[regions.length];
+		for (int i = 0; i < regions.length; i++) {
+			regions[i].draw(regionMask, left, top, scale);
+			Rect b = regions[i].bounds();
+			int x0 = Math.max((b.x-left)/scale, 0), y0 = Math.max((b.y-top)/scale, 0);
+			int x1 = Math.min((b.x+b.width-left+scale-1)/scale, cols), y1 = Math.min((b.y+b.height-top+scale-1)/scale, rows);
+			regionBounds[i] = new Rect(x0, y0, Math.max(x1-x0, 0), Math.max(y1-y0, 0));
+		}
+		imageWidth = width;
+		imageHeight = height;
+	}
+	
+	/**
+	 * Mask for the corners of a frame: the given one, restricted to the regions of interest.
+	 * @param mask Mask of the processed image, or null.
+	 * @return Mask, or null for the whole image.
+	 */
+	Mat regionMask(final Mat mask) {
+		if (regions == null)
+			return mask;
+		if (mask == null)
+			return regionMask;
+		Core.bitwise_and(regionMask, mask, combinedMask);
+		return combinedMask;
+	}
+	
+	/**
+	 * Check if a part of the processed image can have interest points: if it intersects the
+	 * bounds of some region of interest (always, without regions).
+	 * @param x0 Left of the part.
+	 * @param y0 Top of the part.
+	 * @param x1 Right of the part (not included).
+	 * @param y1 Bottom of the part (not included).
+	 */
+	boolean inRegions(final int x0, final int y0, final int x1, final int y1) {
+		if (regions == null)
+			return true;
+		for (Rect b : regionBounds) {
+			if (b.x < x1 && x0 < b.x+b.width && b.y < y1 && y0 < b.y+b.height)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Reduction of the processed images (see setScale).
+	 */
+	public int getScale() {
+		return scale;
+	}
+	
+	/**
+	 * Compute the grayscale image and the interest points of a frame.
+	 * @param frame: Frame, with the colour image. Grayscale image and corners are stored in it.
+	 */
+	public void detect(final Frame frame) {
+		toGray(frame);
+		findCorners(frame, null);
+	}
+	
+	/**
+	 * Compute the grayscale image of a frame, reduced if a scale is set (the colour image is
+	 * reduced first, so that the conversion is also done at the reduced size).
+	 * @param frame: Frame, with the colour image. Grayscale image is stored in it.
+	 */
+	public void toGray(final Frame frame) {
+		Mat image = frame.image;
+		frame.offsetX = 0;
+		frame.offsetY = 0;
+		if (regions != null) {
+			//Process only the part of the image with the regions of interest.
+			prepareRegions(image.cols(), image.rows());
+			image = image.submat(crop);
+			frame.offsetX = crop.x;
+			frame.offsetY = crop.y;
+		}
+		if (scale == 1)
+			Imgproc.cvtColor(image, frame.gray, Imgproc.COLOR_BGR2GRAY);
+		else {
+			Imgproc.resize(image, reduced, new Size(image.cols()/scale, image.rows()/scale),
+					0, 0, Imgproc.INTER_AREA);
+			Imgproc.cvtColor(reduced, frame.gray, Imgproc.COLOR_BGR2GRAY);
+		}
+		if (image != frame.image)
+			image.release();
+		frame.scale = scale;
+		frame.regions = regions;
+	}
+	
+	/**
+	 * Compute the interest points of a frame, from its grayscale image.
+	 * @param frame: Frame, with the grayscale image. Corners are stored in it.
+	 * @param mask: Regions of the image where corners are searched (non zero pixels), or null
+	 * for the whole image.
+	 */
+	public void findCorners(final Frame frame, final Mat mask) {
+		if (regions != null) {
+			findRegionCorners(frame, regionMask(mask));
+			return;
+		}
+		if (mask == null)
+			Imgproc.goodFeaturesToTrack(frame.gray, crn, maxCorners, QUALITY, MIN_DISTANCE);
+		else
+			Imgproc.goodFeaturesToTrack(frame.gray, crn, maxCorners, QUALITY, MIN_DISTANCE, mask, 3, false, 0.04);
+		int size = crn.rows();
+		if (frame.corners.length < 2*size)
+			frame.corners = new int[2*size];
+		if (size > 0)
+			crn.get(0, 0, frame.corners);
+		frame.cornerCount = size;
+	}
+	
+	/**
+	 * Compute the interest points of a frame in each region of interest separately (on a view of
+	 * its bounding rectangle). Points of a region too close to the ones of the previous regions
+	 * (where regions overlap) are dropped.
+	 * @param frame: Frame, with the grayscale image. Corners are stored in it.
+	 * @param mask: Mask of the regions (and of the given mask, see regionMask).
+	 */
+	private void findRegionCorners(final Frame frame, final Mat mask) {
+		double area = 0;
+		for (Rect b : regionBounds)
+			area += b.area();
+		int size = 0;
+		for (Rect b : regionBounds) {
+			if (b.width == 0 || b.height == 0)
+				continue;
+			int budget = Math.max(1, (int) Math.ceil(maxCorners * b.area() / area));
+			Mat gray = frame.gray.submat(b), regionMask = mask.submat(b);
+			Imgproc.goodFeaturesToTrack(gray, crn, budget, QUALITY, MIN_DISTANCE, regionMask, 3, false, 0.04);
+			gray.release();
+			regionMask.release();
+			int n = crn.rows();
+			if (regionCorners.length < 2*n)
+				regionCorners = new int[2*n];
+			if (n > 0)
+				crn.get(0, 0, regionCorners);
+			if (frame.corners.length < 2*(size+n))
+				frame.corners = Arrays.copyOf(frame.corners, 2*(size+n));
+			for (int i = 0; i < n; i++) {
+				int x = regionCorners[2*i]+b.x, y = regionCorners[2*i+1]+b.y;
+				if (size > 0 && tooClose(frame.corners, size, x, y))
+					continue;
+				frame.corners[2*size] = x;
+				frame.corners[2*size+1] = y;
+				size++;
+			}
+		}
+		frame.cornerCount = size;
+	}
+	
+	/**
+	 * Check if a corner is closer than the minimum distance to any of the given corners.
+	 */
+	static boolean tooClose(final int[] corners, final int size, final int x, final int y) {
+		double min = MIN_DISTANCE*MIN_DISTANCE;
+		for (int i = 0; i < size; i++) {
+			int dx = corners[2*i]-x, dy = corners[2*i+1]-y;
+			if (dx*dx+dy*dy < min)
+				return true;
+		}
+		return false;
+	}
+}
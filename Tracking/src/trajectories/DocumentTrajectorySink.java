@@ -0,0 +1,49 @@
+package trajectories;
+
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Sink that adds the finished trajectories to an XML document (VideoAnnotation element), for the
+ * output of a tracker without streamed output (see Trajectories.close(videoFile)). The document is
+ * not thread-safe: it must not be read until the sink is closed.
+ */
+class DocumentTrajectorySink implements TrajectorySink {
+
+	/**
+	 * Document, and element where the trajectories are added.
+	 */
+	private final Document doc;
+	private final Element element;
+
+	/**
+	 * Constructor.
+	 * @param doc XML document.
+	 * @param element Element of the document where the trajectories are added.
+	 */
+	DocumentTrajectorySink(final Document doc, final Element element) {
+		this.doc = doc;
+		this.element = element;
+	}
+
+	@Override
+	public void accept(final Trajectory trajectory) throws IOException {
+		try {
+			trajectory.writeXML(doc, element);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -11,39 +11,53 @@ import org.opencv.core.Point;
 public class DynamicFilter {
 
 	/**
-	 * Parameters that keep the state of the dynamic filter
+	 * Bank where the state of the filter (position, velocity, time of the last update and gain)
+	 * is stored, and slot of the filter in it. Filters of a tracker share the
+	 * same bank, so that they can be processed together (see FilterBank). The slot changes when
+	 * the filters of the bank are arranged (see FilterBank.arrange). Null for a filter on its own.
 	 */
-	Point position;
-	Point velocity;
+	final FilterBank bank;
+	int slot;
 	/**
-	 * Time corresponding to the last update of the filter. It need not be the
-	 * previous frame, due to occlusions or optical flow errors.
+	 * State of a filter on its own (without bank), with the same meaning than in FilterBank, so
+	 * that trajectories read from file do not need a bank each.
 	 */
-	int time;
-	/**
-	 * Filter gain. TODO: Variable filter gain
-	 */
-	double gain;
+	private double positionX, positionY;
+	private double velocityX, velocityY;
+	private int time;
+	private double gain;
 
 	/**
-	 * Correction factor for filter gain (see update method).
-	 */
-	double correction = 0.5;
-	/**
-	 * Constructor: Initialize the filter with the first measure.
+	 * Constructor: Initialize the filter with the first measure, on its own (without bank).
 	 * 
 	 * @param start
 	 *            First position (coordinates) of the filter, for the given time
 	 */
 	public DynamicFilter(final Point start, final int time) {
-		position = start.clone();
-		velocity = new Point(0, 0);
+		bank = null;
+		positionX = start.x;
+		positionY = start.y;
 		this.time = time;
 		gain = 1.0;
 	}
+
+	/**
+	 * Constructor: Initialize the filter with the first measure, in the given bank.
+	 * 
+	 * @param bank
+	 *            Bank for the filter state.
+	 * @param start
+	 *            First position (coordinates) of the filter, for the given time
+	 */
+	public DynamicFilter(final FilterBank bank, final Point start, final int time) {
+		this.bank = bank;
+		slot = bank.add(start.x, start.y, time);
+	}
  
 	/**
-	 * update dynamic filter status with a new measure.
+	 * update dynamic filter status with a new measure. The filter gain starts
+	 * at 1, and is reduced after each update by a correction factor, which is
+	 * halved each time (0.5, 0.25, ...).
 	 * 
 	 * @param value
 	 *            new measure
@@ -51,21 +65,25 @@ public class DynamicFilter {
 	 *            time for the new measure (always greater than filter time).
 	 */
 	public void update(final Point value, final int currentTime) {
-		// Estimate the new position, without correction
+		if (bank != null) {
+			bank.update(slot, value.x, value.y, currentTime);
+			return;
+		}
+		//Same arithmetic than FilterBank.update.
+		// Estimate the new position, without correction.
 		float timeDiff = currentTime - time;
-		Point projection = predict(currentTime);
+		double projectionX = positionX + velocityX * timeDiff;
+		double projectionY = positionY + velocityY * timeDiff;
 		// Estimate velocity
-		Point newVelocity = new Point((value.x - position.x) / timeDiff,
-				(value.y - position.y) / timeDiff);
-		// Correct position using the new measure
-		position.x = projection.x + gain * (value.x - projection.x);
-		position.y = projection.y + gain * (value.y - projection.y);
-		// Correct velocity using the new measure
-		velocity.x += gain * (newVelocity.x - velocity.x);
-		velocity.y += gain * (newVelocity.y - velocity.y);
-		// Correct filter gain:
-		gain -= correction;
-		correction/=2;
+		double newVelocityX = (value.x - positionX) / timeDiff;
+		double newVelocityY = (value.y - positionY) / timeDiff;
+		// Correct position and velocity using the new measure
+		positionX = projectionX + gain * (value.x - projectionX);
+		positionY = projectionY + gain * (value.y - projectionY);
+		velocityX += gain * (newVelocityX - velocityX);
+		velocityY += gain * (newVelocityY - velocityY);
+		// Correct filter gain: the correction is half the gain.
+		gain -= gain / 2;
 		time = currentTime;
 	}
 
@@ -79,11 +97,33 @@ public class DynamicFilter {
 	 * @return Predicted coordinates
 	 */
 	public Point predict(final float currentTime) {
-		// Compute point shift according to its current velocity.
+		return predict(currentTime, new Point());
+	}
+
+	/**
+	 * Predict the position for the given time, storing it in an existing point,
+	 * so that no object is created.
+	 * 
+	 * @param currentTime
+	 *            time where the position is to be estimated.
+	 * @param estimation
+	 *            point where the predicted coordinates are stored.
+	 * @return The estimation point given.
+	 */
+	public Point predict(final float currentTime, final Point estimation) {
+		if (bank != null)
+			return bank.predict(slot, currentTime, estimation);
 		float timeDiff = currentTime - time;
-		Point shift = new Point(velocity.x * timeDiff, velocity.y * timeDiff);
-		// Estimate new position.
-		Point estimation = new Point(position.x + shift.x, position.y + shift.y);
+		estimation.x = positionX + velocityX * timeDiff;
+		estimation.y = positionY + velocityY * timeDiff;
 		return estimation;
 	}
+
+	/**
+	 * Free the slot of the filter in its bank. The filter can not be used any more.
+	 */
+	public void release() {
+		if (bank != null)
+			bank.remove(slot);
+	}
 }
@@ -0,0 +1,285 @@
+package trajectories;
+
+import java.util.Arrays;
+
+import org.opencv.core.Point;
+
+/**
+ * State of the dynamic filters of many trajectories (see DynamicFilter), stored in arrays of
+ * primitive values, one position of the arrays for each filter. Filters can be updated and
+ * predicted one by one, or for a range of consecutive slots at once, in loops over consecutive
+ * positions of the arrays, without calls to the objects of each filter. The filters can be
+ * arranged in any order (see arrange), so that the filters processed together are consecutive;
+ * the filters updated in a frame can be updated while they are arranged, in the same pass over
+ * the arrays. The arithmetic is exactly the one of DynamicFilter, so the results are the same
+ * than with one object for each filter.
+ * A bank is not thread-safe for add, remove and arrange, but different filters can be updated and
+ * predicted at the same time by different threads.
+ */
+public class FilterBank {
+
+	/**
+	 * Filter state for each slot: position, velocity, time of the last update, and gain (see
+	 * DynamicFilter.update). The correction of the gain is always half the gain (1 and 0.5 at the
+	 * start, and both are halved in each update), so it is not stored.
+	 */
+	double[] positionX, positionY;
+	double[] velocityX, velocityY;
+	int[] times;
+	double[] gains;
+	/**
+	 * Arrays for the next order of the filters (see arrange), swapped with the ones of the state.
+	 */
+	private double[] nextPositionX = new double[0], nextPositionY = new double[0];
+	private double[] nextVelocityX = new double[0], nextVelocityY = new double[0];
+	private int[] nextTimes = new int[0];
+	private double[] nextGains = new double[0];
+	/**
+	 * Number of slots used (including free ones), and stack of free slots.
+	 */
+	private int count;
+	private int[] free = new int[16];
+	private int freeCount;
+	
+	/**
+	 * Constructor.
+	 * @param capacity Initial number of filters.
+	 */
+	public FilterBank(final int capacity) {
+		int size = Math.max(capacity, 1);
+		positionX = new double[size];
+		positionY = new double[size];
+		velocityX = new double[size];
+		velocityY = new double[size];
+		times = new int[size];
+		gains = new double[size];
+	}
+	
+	/**
+	 * Add a new filter, initialized with its first measure.
+	 * @param x First position of the filter.
+	 * @param y First position of the filter.
+	 * @param time Time of the first position.
+	 * @return Slot of the filter.
+	 */
+	public int add(final double x, final double y, final int time) {
+		int slot;
+		if (freeCount > 0)
+			slot = free[--freeCount];
+		else {
+			if (count == times.length) {
+				int size = 2*count;
+				positionX = Arrays.copyOf(positionX, size);
+				positionY = Arrays.copyOf(positionY, size);
+				velocityX = Arrays.copyOf(velocityX, size);
+				velocityY = Arrays.copyOf(velocityY, size);
+				times = Arrays.copyOf(times, size);
+				gains = Arrays.copyOf(gains, size);
+			}
+			slot = count++;
+		}
+		positionX[slot] = x;
+		positionY[slot] = y;
+		velocityX[slot] = 0;
+		velocityY[slot] = 0;
+		times[slot] = time;
+		gains[slot] = 1.0;
+		return slot;
+	}
+	
+	/**
+	 * Remove a filter. Its slot is used for the next new filter.
+	 * @param slot Slot of the filter.
+	 */
+	public void remove(final int slot) {
+		if (freeCount == free.length)
+			free = Arrays.copyOf(free, 2*freeCount);
+		free[freeCount++] = slot;
+	}
+	
+	/**
+	 * Arrange the filters in the given order, removing the rest: the new slot i has the filter of
+	 * the slot order[i]. Free slots are discarded, so the next new filter is added after the last
+	 * one. The objects of the filters must be given their new slots.
+	 * @param order Previous slot of each filter, in the new order.
+	 * @param n Number of filters.
+	 */
+	public void arrange(final int[] order, final int n) {
+		arrange(order, n, n, null, null, 0);
+	}
+	
+	/**
+	 * Arrange the filters in the given order, as arrange(order, n), and update the ones moved to
+	 * the last slots with new measures, all of them for the same time (see update). The filters
+	 * are updated while they are moved, so their state is read and written only once.
+	 * @param order Previous slot of each filter, in the new order.
+	 * @param n Number of filters.
+	 * @param from First new slot of the filters to update; the filters of the slots from it to n
+	 * are updated.
+	 * @param x New measure for each filter to update (x[i] for the new slot from+i).
+	 * @param y New measure for each filter to update.
+	 * @param currentTime Time for the new measures (always greater than the filter times).
+	 */
+	public void arrange(final int[] order, final int n, final int from, final double[] x, final double[] y, final int currentTime) {
+		if (nextTimes.length < times.length) {
+			int size = times.length;
+			nextPositionX = new double[size];
+			nextPositionY = new double[size];
+			nextVelocityX = new double[size];
+			nextVelocityY = new double[size];
+			nextTimes = new int[size];
+			nextGains = new double[size];
+		}
+		for (int i = 0; i < from; i++) {
+			int slot = order[i];
+			nextPositionX[i] = positionX[slot];
+			nextPositionY[i] = positionY[slot];
+			nextVelocityX[i] = velocityX[slot];
+			nextVelocityY[i] = velocityY[slot];
+			nextTimes[i] = times[slot];
+			nextGains[i] = gains[slot];
+		}
+		update(order, from, n, x, y, currentTime, true);
+		//Swap the arrays: the previous ones are used for the next order.
+		double[] swap = positionX;
+		positionX = nextPositionX;
+		nextPositionX = swap;
+		swap = positionY;
+		positionY = nextPositionY;
+		nextPositionY = swap;
+		swap = velocityX;
+		velocityX = nextVelocityX;
+		nextVelocityX = swap;
+		swap = velocityY;
+		velocityY = nextVelocityY;
+		nextVelocityY = swap;
+		swap = gains;
+		gains = nextGains;
+		nextGains = swap;
+		int[] swapTimes = times;
+		times = nextTimes;
+		nextTimes = swapTimes;
+		count = n;
+		freeCount = 0;
+	}
+	
+	/**
+	 * Update a filter with a new measure (see DynamicFilter.update).
+	 * @param slot Slot of the filter.
+	 * @param x New measure.
+	 * @param y New measure.
+	 * @param currentTime Time for the new measure (always greater than filter time).
+	 */
+	public void update(final int slot, final double x, final double y, final int currentTime) {
+		//Same arithmetic than the range update, without arrays for the measures.
+		double lastX = positionX[slot], lastY = positionY[slot];
+		double lastVelocityX = velocityX[slot], lastVelocityY = velocityY[slot];
+		// Estimate the new position, without correction.
+		float timeDiff = currentTime - times[slot];
+		double projectionX = lastX + lastVelocityX * timeDiff;
+		double projectionY = lastY + lastVelocityY * timeDiff;
+		// Estimate velocity
+		double newVelocityX = (x - lastX) / timeDiff;
+		double newVelocityY = (y - lastY) / timeDiff;
+		// Correct position and velocity using the new measure
+		double gain = gains[slot];
+		positionX[slot] = projectionX + gain * (x - projectionX);
+		positionY[slot] = projectionY + gain * (y - projectionY);
+		velocityX[slot] = lastVelocityX + gain * (newVelocityX - lastVelocityX);
+		velocityY[slot] = lastVelocityY + gain * (newVelocityY - lastVelocityY);
+		// Correct filter gain: the correction is half the gain.
+		gains[slot] = gain - gain / 2;
+		times[slot] = currentTime;
+	}
+	
+	/**
+	 * Update the filters of consecutive slots with new measures, all of them for the same time.
+	 * @param from First slot.
+	 * @param n Number of filters.
+	 * @param x New measure for each filter (x[i] for the slot from+i).
+	 * @param y New measure for each filter.
+	 * @param currentTime Time for the new measures (always greater than the filter times).
+	 */
+	public void update(final int from, final int n, final double[] x, final double[] y, final int currentTime) {
+		update(null, from, from+n, x, y, currentTime, false);
+	}
+	
+	/**
+	 * Update filters with new measures, all of them for the same time: the state of the filter of
+	 * the slot i is taken from the slot order[i] (or i, without order), and stored in the slot i of
+	 * the state or of the next arrays.
+	 * @param order Previous slot of each filter, or null to update the filters in their slots.
+	 * @param from First slot.
+	 * @param to Slot after the last one.
+	 * @param x New measure for each filter (x[i] for the slot from+i).
+	 * @param y New measure for each filter.
+	 * @param currentTime Time for the new measures.
+	 * @param next Whether the state is stored in the next arrays (see arrange).
+	 */
+	private void update(final int[] order, final int from, final int to, final double[] x, final double[] y, final int currentTime, final boolean next) {
+		double[] positionX = this.positionX, positionY = this.positionY;
+		double[] velocityX = this.velocityX, velocityY = this.velocityY;
+		double[] gains = this.gains;
+		int[] times = this.times;
+		double[] targetPositionX = next ? nextPositionX : positionX, targetPositionY = next ? nextPositionY : positionY;
+		double[] targetVelocityX = next ? nextVelocityX : velocityX, targetVelocityY = next ? nextVelocityY : velocityY;
+		double[] targetGains = next ? nextGains : gains;
+		int[] targetTimes = next ? nextTimes : times;
+		for (int i = from; i < to; i++) {
+			int slot = order != null ? order[i] : i;
+			double measureX = x[i-from], measureY = y[i-from];
+			double lastX = positionX[slot], lastY = positionY[slot];
+			double lastVelocityX = velocityX[slot], lastVelocityY = velocityY[slot];
+			// Estimate the new position, without correction.
+			float timeDiff = currentTime - times[slot];
+			double projectionX = lastX + lastVelocityX * timeDiff;
+			double projectionY = lastY + lastVelocityY * timeDiff;
+			// Estimate velocity
+			double newVelocityX = (measureX - lastX) / timeDiff;
+			double newVelocityY = (measureY - lastY) / timeDiff;
+			// Correct position and velocity using the new measure
+			double gain = gains[slot];
+			targetPositionX[i] = projectionX + gain * (measureX - projectionX);
+			targetPositionY[i] = projectionY + gain * (measureY - projectionY);
+			targetVelocityX[i] = lastVelocityX + gain * (newVelocityX - lastVelocityX);
+			targetVelocityY[i] = lastVelocityY + gain * (newVelocityY - lastVelocityY);
+			// Correct filter gain: the correction is half the gain.
+			targetGains[i] = gain - gain / 2;
+			targetTimes[i] = currentTime;
+		}
+	}
+	
+	/**
+	 * Predict the position of a filter for the given time (see DynamicFilter.predict).
+	 * @param slot Slot of the filter.
+	 * @param currentTime Time where the position is to be estimated.
+	 * @param estimation Point where the predicted coordinates are stored.
+	 * @return The estimation point given.
+	 */
+	public Point predict(final int slot, final float currentTime, final Point estimation) {
+		float timeDiff = currentTime - times[slot];
+		estimation.x = positionX[slot] + velocityX[slot] * timeDiff;
+		estimation.y = positionY[slot] + velocityY[slot] * timeDiff;
+		return estimation;
+	}
+	
+	/**
+	 * Predict the position of the filters of consecutive slots, for the same time.
+	 * @param from First slot.
+	 * @param n Number of filters.
+	 * @param currentTime Time where the positions are to be estimated.
+	 * @param x Predicted position of each filter (x[i] for the slot from+i).
+	 * @param y Predicted position of each filter.
+	 */
+	public void predict(final int from, final int n, final float currentTime, final double[] x, final double[] y) {
+		double[] positionX = this.positionX, positionY = this.positionY;
+		double[] velocityX = this.velocityX, velocityY = this.velocityY;
+		int[] times = this.times;
+		for (int i = 0; i < n; i++) {
+			int slot = from+i;
+			float timeDiff = currentTime - times[slot];
+			x[i] = positionX[slot] + velocityX[slot] * timeDiff;
+			y[i] = positionY[slot] + velocityY[slot] * timeDiff;
+		}
+	}
+}
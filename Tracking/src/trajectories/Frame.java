@@ -0,0 +1,52 @@
+package trajectories;
+
+import org.opencv.core.Mat;
+
+/**
+ * Data of a video frame for the tracker: the image, its grayscale version, and the interest points
+ * detected in it. Frames are reused between video frames, so that the working data does not need
+ * to be created again once it has grown to the required size.
+ */
+public class Frame {
+
+	/**
+	 * Colour image of the frame (BGR).
+	 */
+	public Mat image;
+	/**
+	 * Grayscale image of the frame.
+	 */
+	public Mat gray;
+	/**
+	 * Coordinates of the interest points (x and y of each point, consecutively).
+	 */
+	public int[] corners = new int[0];
+	/**
+	 * Number of interest points.
+	 */
+	public int cornerCount;
+	/**
+	 * Reduction of the grayscale image (and so, of the corners) relative to the colour image: 1
+	 * for the same size, 2 for half the size, and so on (see CornerDetector.setScale).
+	 */
+	public int scale = 1;
+	/**
+	 * Position of the processed part of the colour image (see CornerDetector.setRegions), in
+	 * pixels of the colour image, and regions of interest (null for the whole image).
+	 */
+	public int offsetX, offsetY;
+	public Region[] regions;
+	/**
+	 * Number of frames of the video before this one that were discarded without decoding them,
+	 * because the tracker skips them (see TrackingPipeline).
+	 */
+	public int skipped;
+	
+	/**
+	 * Constructor. Create empty images.
+	 */
+	public Frame() {
+		image = new Mat();
+		gray = new Mat();
+	}
+}
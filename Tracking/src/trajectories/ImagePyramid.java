@@ -0,0 +1,104 @@
+package trajectories;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Optical flow pyramid of a grayscale image, as built by Video.buildOpticalFlowPyramid (without
+ * derivatives): each level is half the size of the previous one, with a border of the size of the
+ * optical flow window around it. The images are kept between frames and filled again for each
+ * new image, so that no image is created once the pyramid has the size of the video.
+ */
+class ImagePyramid {
+
+	/**
+	 * Images with borders, for each level.
+	 */
+	private final Mat[] bordered;
+	/**
+	 * Each level, without borders (region of the bordered image).
+	 */
+	private final Mat[] levels;
+	/**
+	 * Size of each level.
+	 */
+	private final Size[] sizes;
+	/**
+	 * Number of levels of the current image.
+	 */
+	private int count;
+	
+	/**
+	 * Constructor.
+	 * @param maxLevel Maximum level (0 for the image alone).
+	 */
+	ImagePyramid(final int maxLevel) {
+		bordered = new Mat[maxLevel+1];
+		levels = new Mat[maxLevel+1];
+		sizes = new Size[maxLevel+1];
+		for (int i = 0; i <= maxLevel; i++)
+			bordered[i] = new Mat();
+	}
+	
+	/**
+	 * Build the pyramid of an image, with all the levels. The image is copied, so it can be
+	 * modified afterwards.
+	 * @param image Grayscale image.
+	 * @param window Window of the optical flow, which gives the size of the borders. As in
+	 * buildOpticalFlowPyramid, levels not larger than the window are not built.
+	 */
+	void build(final Mat image, final Size window) {
+		build(image, window, levels.length-1);
+	}
+	
+	/**
+	 * Build the pyramid of an image, up to the given level.
+	 * @param image Grayscale image.
+	 * @param window Window of the optical flow (see build(image, window)).
+	 * @param maxLevel Maximum level, not larger than the one given in the constructor.
+	 */
+	void build(final Mat image, final Size window, final int maxLevel) {
+		int width = image.cols(), height = image.rows();
+		int borderX = (int) window.width, borderY = (int) window.height;
+		count = 0;
+		for (int level = 0; level <= Math.min(maxLevel, levels.length-1); level++) {
+			//Create the images of the level only if the size of the video or of the borders has
+			//  changed.
+			if (levels[level] == null || sizes[level].width != width || sizes[level].height != height
+					|| bordered[level].cols() != width+2*borderX || bordered[level].rows() != height+2*borderY
+					|| bordered[level].type() != image.type()) {
+				bordered[level].create(height+2*borderY, width+2*borderX, image.type());
+				levels[level] = bordered[level].submat(new Rect(borderX, borderY, width, height));
+				sizes[level] = new Size(width, height);
+			}
+			if (level == 0)
+				image.copyTo(levels[0]);
+			else
+				Imgproc.pyrDown(levels[level-1], levels[level], sizes[level]);
+			Imgproc.copyMakeBorder(levels[level], bordered[level], borderY, borderY, borderX, borderX,
+					Imgproc.BORDER_REFLECT_101|Imgproc.BORDER_ISOLATED);
+			count++;
+			width = (width+1)/2;
+			height = (height+1)/2;
+			if (width <= borderX || height <= borderY)
+				break;
+		}
+	}
+	
+	/**
+	 * Number of levels of the current image.
+	 */
+	int size() {
+		return count;
+	}
+	
+	/**
+	 * Image of a level, without borders.
+	 * @param level Level (0 for the original image).
+	 */
+	Mat get(final int level) {
+		return levels[level];
+	}
+}
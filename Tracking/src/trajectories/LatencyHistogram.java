@@ -0,0 +1,109 @@
+package trajectories;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, with log-linear buckets (as in HdrHistogram): values are
+ * grouped by their power of two, and each power of two is split in SUB_BUCKETS linear buckets, so
+ * the relative error of the percentiles is at most 1/SUB_BUCKETS, for any value. Recording a
+ * value is a single atomic increment, so values can be recorded from several threads, and the
+ * histogram can be read while they are recorded.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Bits of the value used for the linear buckets of each power of two.
+	 */
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/**
+	 * Number of buckets: values up to 2^63.
+	 */
+	private static final int BUCKETS = (64-SUB_BITS+1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Bucket of a value. Values lower than SUB_BUCKETS have their own bucket; for the rest, the
+	 * bucket is given by the position of the highest bit and the next SUB_BITS bits.
+	 */
+	private static int bucket(final long value) {
+		if (value < SUB_BUCKETS)
+			return (int) Math.max(value, 0);
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift+1)*SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Highest value of a bucket.
+	 */
+	private static long highest(final int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket/SUB_BUCKETS - 1;
+		long low = (long) (bucket%SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return low + (1L << shift) - 1;
+	}
+
+	/**
+	 * Add a value.
+	 * @param nanos Duration in nanoseconds.
+	 */
+	public void record(final long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+	}
+
+	/**
+	 * Number of values.
+	 */
+	public long count() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	/**
+	 * Percentile of the values, rounded up to the highest value of its bucket.
+	 * @param percentile Percentile, from 0 to 100.
+	 * @return Value in nanoseconds, or 0 without values.
+	 */
+	public long percentile(final double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile/100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return highest(i);
+		}
+		return highest(BUCKETS-1);
+	}
+
+	/**
+	 * Maximum value, rounded up to the highest value of its bucket.
+	 * @return Value in nanoseconds, or 0 without values.
+	 */
+	public long max() {
+		for (int i = BUCKETS-1; i >= 0; i--) {
+			if (counts.get(i) > 0)
+				return highest(i);
+		}
+		return 0;
+	}
+
+	/**
+	 * Remove all the values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+	}
+}
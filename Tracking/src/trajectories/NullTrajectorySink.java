@@ -0,0 +1,19 @@
+package trajectories;
+
+/**
+ * Sink that discards the finished trajectories, to measure the tracker without output.
+ */
+public class NullTrajectorySink implements TrajectorySink {
+
+	@Override
+	public void accept(final Trajectory trajectory) {
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
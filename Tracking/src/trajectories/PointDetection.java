@@ -1,6 +1,11 @@
 package trajectories;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.opencv.core.*;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -86,6 +91,22 @@ public class PointDetection {
 		//Introduce attributes into scale element		
 		scaleElement.setAttributeNode(attrScale);	
 	}
+
+	/**
+	 * Stores point data into a streamed XML output. The elements written are the same than in the
+	 * DOM version of this function.
+	 * @param writer XML stream, placed inside the parent element.
+	 * @throws XMLStreamException
+	 */
+	public void writeXML(final XMLStreamWriter writer) throws XMLStreamException {
+		//Write position element, with its coordinates.
+		writer.writeEmptyElement("pos");
+		writer.writeAttribute("x", Double.toString(position.x));
+		writer.writeAttribute("y", Double.toString(position.y));
+		//Write scale element.
+		writer.writeEmptyElement("scale");
+		writer.writeAttribute("octave", Integer.toString(octave));
+	}
 	
 	
 	public static PointDetection readXML(Node pointDetection, Node scale){
@@ -94,23 +115,45 @@ public class PointDetection {
 			Element eElement2 = (Element) scale;
 			//Create a new Point2D:
 			if (eElement2 != null){
-				PointDetection pDet = new PointDetection (	Integer.parseInt(eElement1.getAttribute("x")),
-															Integer.parseInt(eElement1.getAttribute("y")),
+				//Coordinates are written as double values (see writeXML).
+				PointDetection pDet = new PointDetection (	Double.parseDouble(eElement1.getAttribute("x")),
+															Double.parseDouble(eElement1.getAttribute("y")),
 															Integer.parseInt(eElement2.getAttribute("octave")));
-				System.out.println("POS: ");
-				System.out.println("x: " + pDet.position.x);
-				System.out.println("y: " + pDet.position.y);
-				System.out.println("octave: " + pDet.octave);
 				return pDet;
 			}
-			else
-				System.out.println("Octave missing...");
-				
-	
 		}
 		return null;
-		
-				
+	}
+	
+	/**
+	 * Read point data from a streamed XML input. The reader must be placed at the start of the
+	 * parent (Node) element, and it is left at the end of that element.
+	 * @param reader XML stream.
+	 * @return The point read, or null if the position or the scale are missing.
+	 * @throws XMLStreamException
+	 */
+	public static PointDetection readXML(final XMLStreamReader reader) throws XMLStreamException {
+		String x = null, y = null, octave = null;
+		//Read elements until the end of the parent element.
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				String name = reader.getLocalName();
+				if (name.equals("pos")) {
+					x = reader.getAttributeValue(null, "x");
+					y = reader.getAttributeValue(null, "y");
+				}
+				else if (name.equals("scale"))
+					octave = reader.getAttributeValue(null, "octave");
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+		if (x == null || y == null || octave == null)
+			return null;
+		return new PointDetection(Double.parseDouble(x), Double.parseDouble(y), Integer.parseInt(octave));
 	}
 	
 	/**
@@ -1,11 +1,15 @@
 package trajectories;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * 
  * @author alberto
  *
- * Auxiliar class for fast sparse point search, over a matrix with the size of the image.
+ * Auxiliar class for fast sparse point search, over the cells of the image.
  * The class, for a given point, find on an initial list, the one that is closer.
  * This class prevent the calling function to look for a point on a large set of points,
  * by looking only on those points which are close enough to a given point. 
@@ -20,9 +24,11 @@ public class PointSearch {
 	 * DIST_MAX variable.
 	 *  rows, cols: Those variables stores the number of rows and columns of the
 	 * image after the division in equal squares.   
-	 *  pointsList: Is the most important variable of the class. It's a 3-dimensional
-	 * array. The vector of vectors represents each square of the image. For each position
-	 * the variable contains a List of points, thus we store all the points in each quadrant.
+	 *  cellKeys, cellHeads, next: The image is divided into cells, but only the cells
+	 * which contain points are stored, in a hash table. For each of these cells, the
+	 * table gives the first point of the cell, and the rest of points of the cell are
+	 * linked through the next array. Thus, memory and initialization time depend on the
+	 * number of points, but not on the size of the image.
 	 *  
 	 */
 	
@@ -36,6 +42,10 @@ public class PointSearch {
 	 * Squared value of the previous constant.
 	 */
 	private final static byte DIST_MAX_2 = 16;
+	/**
+	 * Value of the hash table keys for empty entries.
+	 */
+	private final static int EMPTY = -1;
 	/**
 	 * Size (width and height) of each object cell.
 	 */
@@ -50,14 +60,90 @@ public class PointSearch {
 	private int cols;
 	
 	/**
-	 * Main structure of the object. The image is divided into rows x cols cells, and each
-	 * cell stores all the points which lies within its boundaries. Thus, each cell must
-	 * be an array, since more than one point could lie in the cell. 
+	 * Points stored in the structure, and number of them.
+	 */
+	private PointData[] points;
+	private int count;
+	/**
+	 * For each point, its index in the list given to Init.
+	 */
+	private int[] pointIndex;
+	/**
+	 * Coordinates and octave of each point, copied from the point objects, so that the batch
+	 * search reads them from contiguous arrays.
+	 */
+	private double[] pointX;
+	private double[] pointY;
+	private int[] pointOctave;
+	/**
+	 * For each point, the query it has been assigned to in matchAll, or -1.
+	 */
+	private int[] claimed;
+	/**
+	 * Number of points in the list given to Init (including those out of the image).
+	 */
+	private int total;
+	/**
+	 * For each point, the index of the next point in the same cell (EMPTY for the last one).
+	 */
+	private int[] next;
+	/**
+	 * Hash table of the non empty cells. cellKeys stores the cell index (row*cols+col), or EMPTY,
+	 * and cellHeads the index of the first point of the cell. The size of the table is a power
+	 * of two (2^bits), at least twice the number of points. 
+	 */
+	private int[] cellKeys;
+	private int[] cellHeads;
+	private int bits;
+	
+	/**
+	 * Data for the batch search (matchAll). For each query (prediction): coordinates, octave, and
+	 * the point assigned to it. For each point of the list given to Init: the query it has been
+	 * assigned to. Arrays are kept between frames, and only grow.
 	 */
-	ArrayList<ArrayList<ArrayList<PointData>>> pointsList; 
+	private double[] queryX;
+	private double[] queryY;
+	private int[] queryOctave;
+	private int[] assignment;
+	private int[] owners;
 	/**
-	 * Constructor. Create the cell structure to hold the points, but all the cells are uninitialiced
-	 * (set to null).
+	 * Data for the sweep of matchAll. Points sorted by cell in row-major order (and, in each cell,
+	 * in list order): position of each one in the points array, and its column; first sorted point
+	 * of each row (rows+1 entries). Cell of each query, and queries of an occlusion bucket sorted
+	 * in the same order. Working arrays of the counting sorts.
+	 */
+	private int[] sortedPoints = new int[0];
+	private int[] sortedCols = new int[0];
+	private int[] rowStart = new int[0];
+	private int[] queryRow = new int[0];
+	private int[] queryCol = new int[0];
+	private int[] sortedQueries = new int[0];
+	private int[] sortBuffer = new int[0];
+	private int[] sortCounts = new int[0];
+	/**
+	 * For each of the three rows searched by the current query in the sweep: first point not
+	 * before the columns of the query, and end of the row.
+	 */
+	private final int[] sweepNext = new int[3];
+	private final int[] sweepEnd = new int[3];
+	/**
+	 * Data for the parallel batch search: occlusion bucket of each query, the point found for it
+	 * in the current round and its squared distance, the queries still to be solved, and for each
+	 * point, the best query that has asked for it in the current round (or -1).
+	 */
+	private int[] queryBucket = new int[0];
+	private int[] candidate = new int[0];
+	private double[] candidateDist = new double[0];
+	private int[] pending = new int[0];
+	private AtomicIntegerArray bids = new AtomicIntegerArray(0);
+	/**
+	 * Number of queries searched by each parallel task.
+	 */
+	private final static int TASK_SIZE = 256;
+	
+	/**
+	 * Constructor. Create the structure to hold the points. No memory is reserved for the cells,
+	 * since only the cells with points are stored.
 	 * @param height image height in pixels
 	 * @param width image width in pixels
 	 * in the correct block.
@@ -79,17 +165,24 @@ public class PointSearch {
 		//    but it is inevitable).
 		rows = 1+(height-1)/step;
 		cols = 1+(width-1)/step;
-		//First of all we have to generate the search structure, i.e., the 3-dimensional array.
-		pointsList = new ArrayList<ArrayList<ArrayList<PointData>>>(cols);
-		
-		//Fill all the cells the structure with null arrays. 
-		for (int i=0; i<cols; i++){
-			ArrayList<ArrayList<PointData>> t = new ArrayList<ArrayList<PointData>>(rows);
-			pointsList.add(t);
-			for(int j = 0; j < rows; j++){
-				t.add(new ArrayList<PointData>());
-			}
-		}
+		points = new PointData[0];
+		next = new int[0];
+		pointIndex = new int[0];
+		pointX = new double[0];
+		pointY = new double[0];
+		pointOctave = new int[0];
+		claimed = new int[0];
+		count = 0;
+		total = 0;
+		queryX = new double[0];
+		queryY = new double[0];
+		queryOctave = new int[0];
+		assignment = new int[0];
+		owners = new int[0];
+		bits = 4;
+		cellKeys = new int[1 << bits];
+		cellHeads = new int[1 << bits];
+		Arrays.fill(cellKeys, EMPTY);
 	}
 
 	/**
@@ -97,13 +190,35 @@ public class PointSearch {
 	 *  @param points list of detected points to be allocated in the main structure
 	 */
 	public void Init(final ArrayList<PointData> points) {
-		//Delete previous point data, if any.
-		for (ArrayList<ArrayList<PointData>> tx : pointsList)
-			for (ArrayList<PointData> ty : tx)
-				ty.clear();
-			
+		int size = points.size();
+		if (this.points.length < size) {
+			this.points = new PointData[size];
+			next = new int[size];
+			pointIndex = new int[size];
+			pointX = new double[size];
+			pointY = new double[size];
+			pointOctave = new int[size];
+			claimed = new int[size];
+		}
+		//Size the hash table for the number of points (at least twice), and delete previous
+		//  point data, if any.
+		int newBits = 4;
+		while ((1 << newBits) < 2*size)
+			newBits++;
+		if (newBits > bits || newBits+2 < bits) {
+			bits = newBits;
+			cellKeys = new int[1 << bits];
+			cellHeads = new int[1 << bits];
+		}
+		Arrays.fill(cellKeys, EMPTY);
+		count = 0;
+		total = size;
+		
+		//Points are inserted at the beginning of its cell list. Going through the points in
+		//  reverse order, each cell list keeps the order of the points given.
 		int row, col;
-		for (PointData p : points){
+		for (int i = size-1; i >= 0; i--){
+			PointData p = points.get(i);
 			//Compute the cell index (row and col) for the point.
 			row = (int) (p.point.position.y/step);
 			col = (int) (p.point.position.x/step);
@@ -114,9 +229,21 @@ public class PointSearch {
 			if (col>=cols || col<0)
 				continue;
 			//We add the point to the List in the corresponding block
-			ArrayList<ArrayList<PointData>> tx = pointsList.get(col);
-			ArrayList<PointData> ty = tx.get(row); 
-			ty.add(p);
+			int key = row*cols+col;
+			int h = slot(key);
+			if (cellKeys[h] == EMPTY) {
+				cellKeys[h] = key;
+				next[count] = EMPTY;
+			}
+			else
+				next[count] = cellHeads[h];
+			cellHeads[h] = count;
+			this.points[count] = p;
+			pointIndex[count] = i;
+			pointX[count] = p.point.position.x;
+			pointY[count] = p.point.position.y;
+			pointOctave[count] = p.point.octave;
+			count++;
 		}
 	}
 
@@ -161,23 +288,22 @@ public class PointSearch {
 			
 		//We set distance to a sufficiently large value. It would be enough a value slightly greater
 		// to the margin because if any distance is less than it, no valid points would be found.
+		//Points far outside of the image have no cells to check (max<=min).
 		dist = 1e10;
 		PointData selected = null;
-		for (ArrayList<ArrayList<PointData>> tx : pointsList.subList(minCol, maxCol)) {
-			for (ArrayList<PointData> ty : tx.subList(minRow, maxRow)) {
-				try {
-					for (PointData p : ty) {
-						if (p.used) 
-							continue;
-						if (point.octave != p.point.octave) continue;
-						dAux=point.PointDistance2(p.point);
-						if (dAux<dist) {
-							dist = dAux;
-							selected = p;
-						}
+		for (int c = minCol; c < maxCol; c++) {
+			for (int r = minRow; r < maxRow; r++) {
+				for (int i = head(r*cols+c); i != EMPTY; i = next[i]) {
+					PointData p = points[i];
+					if (p.used) 
+						continue;
+					if (point.octave != p.point.octave) continue;
+					dAux=point.PointDistance2(p.point);
+					if (dAux<dist) {
+						dist = dAux;
+						selected = p;
 					}
 				}
-				catch (java.lang.NullPointerException e) { continue; }
 			}
 		}
 		//Once the loop is finished we need to check if the distance is less than the indicated margin.
@@ -187,6 +313,441 @@ public class PointSearch {
 		return selected;
 	}
 	
+	/**
+	 * Find the closest point for every prediction, in a single call. The result is the same than
+	 * calling FindPoint for each prediction, marking the point found as used, except for the
+	 * order of the predictions: predictions of lower occlusion buckets are solved first, as
+	 * in the sequential search, but within a bucket, they are solved in cell order (row-major),
+	 * in a single sweep over the points sorted in the same order, instead of looking up the
+	 * neighbour cells of each prediction in the hash table. Points and predictions are sorted
+	 * (by bucket and cell) with counting sorts, in linear time. Predictions with status 0 (not found by the
+	 * optical flow) are not searched.
+	 * The used flag of the points is not checked nor modified: the assignment is returned in
+	 * arrays instead (see also getOwners).
+	 * @param predictions Predictions for each occlusion bucket, as given by the tracker.
+	 * @return For each prediction (all the buckets one after the other, in list order), the index
+	 * in the list given to Init of the point assigned, or -1. The array is reused in the next
+	 * call, and it can be larger than the number of predictions.
+	 */
+	public int[] matchAll(final ArrayList<ArrayList<PointCorrespondence>> predictions) {
+		int size = 0;
+		for (ArrayList<PointCorrespondence> bucket : predictions)
+			size += bucket.size();
+		if (assignment.length < size) {
+			queryX = new double[size];
+			queryY = new double[size];
+			queryOctave = new int[size];
+			assignment = new int[size];
+		}
+		if (queryRow.length < size) {
+			queryRow = new int[size];
+			queryCol = new int[size];
+			sortedQueries = new int[size];
+		}
+		if (queryBucket.length < size)
+			queryBucket = new int[size];
+		if (owners.length < total)
+			owners = new int[total];
+		Arrays.fill(owners, 0, total, -1);
+		Arrays.fill(claimed, 0, count, -1);
+		Arrays.fill(assignment, 0, size, -1);
+		sortPoints();
+		
+		//Store the queries, with the cell of the ones that can have points near, and sort them by
+		//  bucket and cell.
+		int q = 0, n = 0;
+		for (int b = 0; b < predictions.size(); b++) {
+			for (PointCorrespondence p : predictions.get(b)) {
+				queryX[q] = p.predicted.point.position.x;
+				queryY[q] = p.predicted.point.position.y;
+				queryOctave[q] = p.predicted.point.octave;
+				queryBucket[q] = b;
+				if (p.status != 0) {
+					//Same cell than in FindPoint.
+					int row = (int) (queryY[q]/step);
+					int col = (int) (queryX[q]/step);
+					if (row >= -1 && row <= rows && col >= -1 && col <= cols) {
+						queryRow[q] = row;
+						queryCol[q] = col;
+						sortedQueries[n++] = q;
+					}
+				}
+				q++;
+			}
+		}
+		sortQueries(n, predictions.size());
+		
+		//Solve the queries in order.
+		int bucket = -1, row = 0;
+		for (int k = 0; k < n; k++) {
+			q = sortedQueries[k];
+			if (queryBucket[q] != bucket || queryRow[q] != row) {
+				//New row of queries: the sweep starts again in the three rows around it.
+				bucket = queryBucket[q];
+				row = queryRow[q];
+				for (int d = 0; d < 3; d++) {
+					int r = row-1+d;
+					boolean inside = r >= 0 && r < rows;
+					sweepNext[d] = inside ? rowStart[r] : 0;
+					sweepEnd[d] = inside ? rowStart[r+1] : 0;
+				}
+			}
+			int point = claim(q);
+			if (point != EMPTY) {
+				assignment[q] = pointIndex[point];
+				owners[pointIndex[point]] = q;
+				claimed[point] = q;
+			}
+		}
+		return assignment;
+	}
+	
+	/**
+	 * Sort the points by cell, in row-major order, keeping the list order in each cell (see
+	 * sortedPoints): counting sort by column, and then by row.
+	 */
+	private void sortPoints() {
+		if (sortedPoints.length < count) {
+			sortedPoints = new int[count];
+			sortedCols = new int[count];
+		}
+		if (sortBuffer.length < count)
+			sortBuffer = new int[count];
+		if (sortCounts.length < Math.max(rows, cols)+3)
+			sortCounts = new int[Math.max(rows, cols)+3];
+		if (rowStart.length < rows+1)
+			rowStart = new int[rows+1];
+		//By column. Points were stored in reverse list order, so they are taken from the last one.
+		Arrays.fill(sortCounts, 0, cols+1, 0);
+		for (int i = 0; i < count; i++)
+			sortCounts[(int) (pointX[i]/step)+1]++;
+		for (int c = 0; c < cols; c++)
+			sortCounts[c+1] += sortCounts[c];
+		for (int i = count-1; i >= 0; i--)
+			sortBuffer[sortCounts[(int) (pointX[i]/step)]++] = i;
+		//By row, keeping the column order.
+		Arrays.fill(sortCounts, 0, rows+1, 0);
+		for (int i = 0; i < count; i++)
+			sortCounts[(int) (pointY[i]/step)+1]++;
+		for (int r = 0; r < rows; r++)
+			sortCounts[r+1] += sortCounts[r];
+		System.arraycopy(sortCounts, 0, rowStart, 0, rows+1);
+		for (int k = 0; k < count; k++) {
+			int i = sortBuffer[k];
+			int position = sortCounts[(int) (pointY[i]/step)]++;
+			sortedPoints[position] = i;
+			sortedCols[position] = (int) (pointX[i]/step);
+		}
+	}
+	
+	/**
+	 * Sort the first queries of sortedQueries by bucket and cell (in row-major order), keeping
+	 * their order in each cell: counting sorts by column, by row and by bucket. Rows and columns
+	 * go from -1 to rows and cols.
+	 * @param n Number of queries.
+	 * @param buckets Number of buckets.
+	 */
+	private void sortQueries(final int n, final int buckets) {
+		if (sortBuffer.length < n)
+			sortBuffer = new int[n];
+		if (sortCounts.length < buckets+1)
+			sortCounts = new int[buckets+1];
+		Arrays.fill(sortCounts, 0, cols+3, 0);
+		for (int k = 0; k < n; k++)
+			sortCounts[queryCol[sortedQueries[k]]+2]++;
+		for (int c = 0; c < cols+2; c++)
+			sortCounts[c+1] += sortCounts[c];
+		for (int k = 0; k < n; k++) {
+			int q = sortedQueries[k];
+			sortBuffer[sortCounts[queryCol[q]+1]++] = q;
+		}
+		Arrays.fill(sortCounts, 0, rows+3, 0);
+		for (int k = 0; k < n; k++)
+			sortCounts[queryRow[sortBuffer[k]]+2]++;
+		for (int r = 0; r < rows+2; r++)
+			sortCounts[r+1] += sortCounts[r];
+		for (int k = 0; k < n; k++) {
+			int q = sortBuffer[k];
+			sortedQueries[sortCounts[queryRow[q]+1]++] = q;
+		}
+		Arrays.fill(sortCounts, 0, buckets+1, 0);
+		for (int k = 0; k < n; k++)
+			sortCounts[queryBucket[sortedQueries[k]]+1]++;
+		for (int b = 0; b < buckets; b++)
+			sortCounts[b+1] += sortCounts[b];
+		for (int k = 0; k < n; k++) {
+			int q = sortedQueries[k];
+			sortBuffer[sortCounts[queryBucket[q]]++] = q;
+		}
+		System.arraycopy(sortBuffer, 0, sortedQueries, 0, n);
+	}
+	
+	/**
+	 * Parallel version of matchAll. The predictions are searched by the threads of the given pool,
+	 * and points are claimed with atomic operations. When several predictions ask for the same
+	 * point, the closest one wins; for equal distances, the one with less occlusions, and then,
+	 * the first one in the list. The predictions that lose a point search again, without the
+	 * points already assigned, until all of them are solved. Thus, the result does not depend on
+	 * the number of threads, nor on their order, although it can be different from the one of
+	 * the sequential matchAll, where lower occlusion buckets always claim points first.
+	 * @param predictions Predictions for each occlusion bucket, as given by the tracker.
+	 * @param pool Threads for the search.
+	 * @return Assignment for each prediction (see matchAll). getOwners also gives the result.
+	 */
+	public int[] matchAll(final ArrayList<ArrayList<PointCorrespondence>> predictions, final ForkJoinPool pool) {
+		int size = 0;
+		for (ArrayList<PointCorrespondence> bucket : predictions)
+			size += bucket.size();
+		if (assignment.length < size) {
+			queryX = new double[size];
+			queryY = new double[size];
+			queryOctave = new int[size];
+			assignment = new int[size];
+		}
+		if (queryBucket.length < size) {
+			queryBucket = new int[size];
+			candidate = new int[size];
+			candidateDist = new double[size];
+			pending = new int[size];
+		}
+		if (owners.length < total)
+			owners = new int[total];
+		if (bids.length() < count)
+			bids = new AtomicIntegerArray(points.length);
+		for (int i = 0; i < count; i++)
+			bids.set(i, -1);
+		Arrays.fill(owners, 0, total, -1);
+		Arrays.fill(claimed, 0, count, -1);
+		Arrays.fill(assignment, 0, size, -1);
+		
+		//Store the queries.
+		int q = 0, n = 0;
+		for (int b = 0; b < predictions.size(); b++) {
+			for (PointCorrespondence p : predictions.get(b)) {
+				queryX[q] = p.predicted.point.position.x;
+				queryY[q] = p.predicted.point.position.y;
+				queryOctave[q] = p.predicted.point.octave;
+				queryBucket[q] = b;
+				if (p.status != 0)
+					pending[n++] = q;
+				q++;
+			}
+		}
+		
+		while (n > 0) {
+			//Each pending query looks for its closest free point, and bids for it.
+			pool.invoke(new SearchTask(this, 0, n));
+			//Assign points to the winners of the bids. The rest of queries with a candidate
+			//  search again in the next round (winners always exist, so rounds finish).
+			int kept = 0;
+			for (int k = 0; k < n; k++) {
+				q = pending[k];
+				int point = candidate[q];
+				if (point == EMPTY)
+					continue;
+				if (bids.get(point) == q) {
+					claimed[point] = q;
+					assignment[q] = pointIndex[point];
+					owners[pointIndex[point]] = q;
+				}
+				else
+					pending[kept++] = q;
+			}
+			for (int k = 0; k < n; k++) {
+				if (candidate[pending[k]] != EMPTY)
+					bids.set(candidate[pending[k]], -1);
+			}
+			n = kept;
+		}
+		return assignment;
+	}
+	
+	/**
+	 * Search the closest free point for the given pending queries, and bid for it: the query is
+	 * stored for the point if there is no other query, or if it is better than the stored one.
+	 * @param from First pending query.
+	 * @param to Last pending query (not included).
+	 */
+	private void searchAndBid(final int from, final int to) {
+		for (int k = from; k < to; k++) {
+			int q = pending[k];
+			int point = search(q);
+			candidate[q] = point;
+			if (point == EMPTY)
+				continue;
+			int current = bids.get(point);
+			while (current == -1 || better(q, current)) {
+				if (bids.compareAndSet(point, current, q))
+					break;
+				current = bids.get(point);
+			}
+		}
+	}
+	
+	/**
+	 * Compare two queries bidding for the same point.
+	 * @return true if query a has priority over query b.
+	 */
+	private boolean better(final int a, final int b) {
+		if (candidateDist[a] != candidateDist[b])
+			return candidateDist[a] < candidateDist[b];
+		if (queryBucket[a] != queryBucket[b])
+			return queryBucket[a] < queryBucket[b];
+		return a < b;
+	}
+	
+	/**
+	 * Closest point to the given query, among the points not assigned in previous rounds, as in
+	 * FindPoint. The squared distance is stored in candidateDist. Only shared data that does not
+	 * change during a round is read, so it can be called from several threads.
+	 * @param q Index of the query.
+	 * @return Position of the point in the points array, or EMPTY if there is no point near
+	 * enough.
+	 */
+	private int search(final int q) {
+		double x = queryX[q];
+		double y = queryY[q];
+		int octave = queryOctave[q];
+		int row=(int)(y/step);
+		int col=(int)(x/step);
+		double dAux, dist = 1e10;
+		int selected = EMPTY;
+		for (int c = Math.max(col-1, 0); c < Math.min(col+2, cols); c++) {
+			for (int r = Math.max(row-1, 0); r < Math.min(row+2, rows); r++) {
+				for (int i = head(r*cols+c); i != EMPTY; i = next[i]) {
+					if (claimed[i] != -1)
+						continue;
+					if (octave != pointOctave[i]) continue;
+					double dx = x-pointX[i];
+					double dy = y-pointY[i];
+					dAux = dx*dx+dy*dy;
+					if (dAux<dist) {
+						dist = dAux;
+						selected = i;
+					}
+				}
+			}
+		}
+		candidateDist[q] = dist;
+		if (dist>DIST_MAX_2)
+			return EMPTY;
+		return selected;
+	}
+	
+	/**
+	 * Parallel task for searchAndBid. Ranges larger than TASK_SIZE are split in two halves.
+	 */
+	private static class SearchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final PointSearch search;
+		private final int from, to;
+		
+		SearchTask(final PointSearch search, final int from, final int to) {
+			this.search = search;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to-from <= TASK_SIZE) {
+				search.searchAndBid(from, to);
+				return;
+			}
+			int middle = (from+to) >>> 1;
+			invokeAll(new SearchTask(search, from, middle), new SearchTask(search, middle, to));
+		}
+	}
+	
+	/**
+	 * Result of the last matchAll call, for the points.
+	 * @return For each point of the list given to Init, the index of the prediction it has been
+	 * assigned to (see matchAll), or -1. The array is reused in the next call, and it can be
+	 * larger than the number of points.
+	 */
+	public int[] getOwners() {
+		return owners;
+	}
+	
+	/**
+	 * Closest point to the given query that has not been assigned yet (as in FindPoint), in the
+	 * sweep of matchAll: the points of the three rows around the query are taken from the sorted
+	 * points, from the position reached by the previous queries of the same row, in the same
+	 * order than in FindPoint (by column, then by row, then in list order).
+	 * @param q Index of the query.
+	 * @return Position of the point in the points array, or EMPTY if there is no point near
+	 * enough.
+	 */
+	private int claim(final int q) {
+		double x = queryX[q];
+		double y = queryY[q];
+		int octave = queryOctave[q];
+		int col = queryCol[q];
+		double dAux, dist = 1e10;
+		int selected = EMPTY;
+		//Skip the points before the columns of the query. The next queries of the row are not
+		//  in lower columns, so they start from here.
+		for (int d = 0; d < 3; d++) {
+			int k = sweepNext[d], end = sweepEnd[d];
+			while (k < end && sortedCols[k] < col-1)
+				k++;
+			sweepNext[d] = k;
+		}
+		int k0 = sweepNext[0], k1 = sweepNext[1], k2 = sweepNext[2];
+		for (int c = col-1; c <= col+1; c++) {
+			for (int d = 0; d < 3; d++) {
+				int k = d == 0 ? k0 : (d == 1 ? k1 : k2);
+				int end = sweepEnd[d];
+				for (; k < end && sortedCols[k] == c; k++) {
+					int i = sortedPoints[k];
+					if (claimed[i] != -1)
+						continue;
+					if (octave != pointOctave[i]) continue;
+					double dx = x-pointX[i];
+					double dy = y-pointY[i];
+					dAux = dx*dx+dy*dy;
+					if (dAux<dist) {
+						dist = dAux;
+						selected = i;
+					}
+				}
+				if (d == 0)
+					k0 = k;
+				else if (d == 1)
+					k1 = k;
+				else
+					k2 = k;
+			}
+		}
+		if (dist>DIST_MAX_2)
+			return EMPTY;
+		return selected;
+	}
+	
+	/**
+	 * Position of the given cell in the hash table: the entry where it is stored or, if the
+	 * cell is not stored, the empty entry where it should be inserted.
+	 * @param key Cell index (row*cols+col).
+	 * @return Position in the hash table.
+	 */
+	private int slot(final int key) {
+		int mask = (1 << bits)-1;
+		int h = (key*0x9E3779B9) >>> (32-bits);
+		while (cellKeys[h] != EMPTY && cellKeys[h] != key)
+			h = (h+1) & mask;
+		return h;
+	}
+	
+	/**
+	 * First point of the given cell.
+	 * @param key Cell index (row*cols+col).
+	 * @return Index of the first point, or EMPTY if the cell has no points.
+	 */
+	private int head(final int key) {
+		int h = slot(key);
+		return cellKeys[h] == EMPTY ? EMPTY : cellHeads[h];
+	}
+	
 	
 	
 	
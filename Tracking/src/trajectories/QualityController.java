@@ -0,0 +1,144 @@
+package trajectories;
+
+/**
+ * Quality control for real-time tracking (see Trajectories.setRealTime). The controller follows
+ * the processing time of the frames (as an exponential average, so that a single slow frame does
+ * not change anything), and when it is over the budget, it lowers the quality one level: fewer
+ * interest points, then a smaller optical flow window, fewer pyramid levels, fewer optical flow
+ * iterations, and finally, interest points only every other frame (the rest of frames, the
+ * trajectories are followed with the optical flow alone). When the time is well below the budget
+ * for a while, the quality is raised again one level. After each change, the controller waits
+ * some frames for the average to reflect it.
+ */
+public class QualityController {
+
+	/**
+	 * Parameters of each quality level, from the full quality (level 0, the default parameters
+	 * of the tracker) to the lowest one.
+	 */
+	private static final int[] CORNERS = {CornerDetector.MAX_CORNERS, 150, 100, 100, 100, 100, 100};
+	private static final int[] WINDOW = {9, 9, 9, 7, 7, 7, 7};
+	private static final int[] PYRAMID_LEVELS = {3, 3, 3, 3, 2, 2, 2};
+	private static final int[] ITERATIONS = {10, 10, 10, 10, 10, 5, 5};
+	private static final boolean[] ALTERNATE_DETECTION = {false, false, false, false, false, false, true};
+	/**
+	 * Lowest quality level.
+	 */
+	public static final int MAX_LEVEL = CORNERS.length-1;
+	/**
+	 * Weight of each frame in the average time.
+	 */
+	private static final double SMOOTHING = 0.2;
+	/**
+	 * Frames to wait after a change before lowering the quality again, and before raising it.
+	 */
+	private static final int DEGRADE_FRAMES = 10;
+	private static final int RECOVER_FRAMES = 30;
+	/**
+	 * The quality is raised when the average time is below this fraction of the budget.
+	 */
+	private static final double RECOVER_FRACTION = 0.7;
+
+	/**
+	 * Time budget of a frame, in nanoseconds.
+	 */
+	private final long budget;
+	/**
+	 * Current level, average time of the frames (-1 before the first one), frames since the last
+	 * change, and frames over the budget.
+	 */
+	private volatile int level;
+	private volatile double average = -1;
+	private int unchanged;
+	private long overruns;
+
+	/**
+	 * Constructor.
+	 * @param budget Time budget of a frame, in milliseconds (for instance, 33 for 30 frames/s).
+	 */
+	public QualityController(final double budget) {
+		if (budget <= 0)
+			throw new IllegalArgumentException("Budget must be positive: " + budget);
+		this.budget = (long) (budget * 1e6);
+	}
+
+	/**
+	 * Add the processing time of a frame, and change the quality level if needed.
+	 * @param nanos Time of the frame, in nanoseconds.
+	 * @return true if the level has changed.
+	 */
+	public boolean frame(final long nanos) {
+		average = average < 0 ? nanos : average + SMOOTHING*(nanos - average);
+		unchanged++;
+		if (nanos > budget)
+			overruns++;
+		if (average > budget && level < MAX_LEVEL && unchanged >= DEGRADE_FRAMES) {
+			level++;
+			unchanged = 0;
+			return true;
+		}
+		if (average < RECOVER_FRACTION*budget && level > 0 && unchanged >= RECOVER_FRAMES) {
+			level--;
+			unchanged = 0;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Current quality level (0 for the full quality, up to MAX_LEVEL).
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Average time of the frames, in milliseconds.
+	 */
+	public double getAverage() {
+		return Math.max(average, 0) * 1e-6;
+	}
+
+	/**
+	 * Number of frames over the budget.
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * Maximum number of interest points for the current level.
+	 */
+	public int getMaxCorners() {
+		return CORNERS[level];
+	}
+
+	/**
+	 * Size of the optical flow window for the current level.
+	 */
+	public int getWindow() {
+		return WINDOW[level];
+	}
+
+	/**
+	 * Number of pyramid levels for the current level, apart from the image itself.
+	 */
+	public int getPyramidLevels() {
+		return PYRAMID_LEVELS[level];
+	}
+
+	/**
+	 * Maximum number of optical flow iterations for the current level.
+	 */
+	public int getIterations() {
+		return ITERATIONS[level];
+	}
+
+	/**
+	 * Whether interest points must be detected in a frame, for the current level.
+	 * @param time Time of the frame.
+	 */
+	public boolean detect(final int time) {
+		return !ALTERNATE_DETECTION[level] || time % 2 == 0;
+	}
+}
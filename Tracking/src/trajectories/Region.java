@@ -0,0 +1,104 @@
+package trajectories;
+
+import java.util.Arrays;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+/**
+ * Region of interest of the video (a rectangle or a polygon), in pixels of the full resolution
+ * image. When regions are set (see CornerDetector.setRegions), only the part of the frames around
+ * them is processed, interest points are only searched inside them, and trajectories that leave
+ * all of them are finished.
+ */
+public class Region {
+
+	/**
+	 * Vertices of the polygon (null for a rectangle), and bounding rectangle.
+	 */
+	private final Point[] polygon;
+	private final Rect bounds;
+
+	/**
+	 * Constructor for a rectangular region.
+	 * @param rect Rectangle (x+width and y+height not included).
+	 */
+	public Region(final Rect rect) {
+		if (rect.width <= 0 || rect.height <= 0)
+			throw new IllegalArgumentException("Empty region: " + rect);
+		polygon = null;
+		bounds = new Rect(rect.x, rect.y, rect.width, rect.height);
+	}
+
+	/**
+	 * Constructor for a polygonal region.
+	 * @param vertices Vertices of the polygon, in order (at least 3).
+	 */
+	public Region(final Point... vertices) {
+		if (vertices.length < 3)
+			throw new IllegalArgumentException("A polygon needs at least 3 vertices: " + vertices.length);
+		polygon = new Point[vertices.length];
+		double left = Double.MAX_VALUE, top = Double.MAX_VALUE, right = -Double.MAX_VALUE, bottom = -Double.MAX_VALUE;
+		for (int i = 0; i < vertices.length; i++) {
+			polygon[i] = new Point(vertices[i].x, vertices[i].y);
+			left = Math.min(left, vertices[i].x);
+			top = Math.min(top, vertices[i].y);
+			right = Math.max(right, vertices[i].x);
+			bottom = Math.max(bottom, vertices[i].y);
+		}
+		int x = (int) Math.floor(left), y = (int) Math.floor(top);
+		bounds = new Rect(x, y, (int) Math.floor(right)+1-x, (int) Math.floor(bottom)+1-y);
+	}
+
+	/**
+	 * Bounding rectangle of the region.
+	 */
+	public Rect bounds() {
+		return bounds;
+	}
+
+	/**
+	 * Check if a point is inside the region.
+	 * @param x Column, in pixels of the full resolution image.
+	 * @param y Row, in pixels of the full resolution image.
+	 */
+	public boolean contains(final double x, final double y) {
+		if (x < bounds.x || y < bounds.y || x >= bounds.x+bounds.width || y >= bounds.y+bounds.height)
+			return false;
+		if (polygon == null)
+			return true;
+		//Even-odd rule: count the edges crossed by a horizontal ray from the point.
+		boolean inside = false;
+		for (int i = 0, j = polygon.length-1; i < polygon.length; j = i++) {
+			Point a = polygon[i], b = polygon[j];
+			if ((a.y > y) != (b.y > y) && x < (b.x-a.x) * (y-a.y) / (b.y-a.y) + a.x)
+				inside = !inside;
+		}
+		return inside;
+	}
+
+	/**
+	 * Draw the region (value 255) in a mask of a processed image.
+	 * @param mask Mask, of the size of the processed image.
+	 * @param offsetX Position of the processed image in the full resolution image.
+	 * @param offsetY Position of the processed image in the full resolution image.
+	 * @param scale Reduction of the processed image (see CornerDetector.setScale).
+	 */
+	void draw(final Mat mask, final int offsetX, final int offsetY, final int scale) {
+		Scalar value = new Scalar(255);
+		if (polygon == null) {
+			Core.rectangle(mask, new Point((bounds.x-offsetX)/scale, (bounds.y-offsetY)/scale),
+					new Point((bounds.x+bounds.width-1-offsetX)/scale, (bounds.y+bounds.height-1-offsetY)/scale),
+					value, Core.FILLED);
+			return;
+		}
+		Point[] points = new Point[polygon.length];
+		for (int i = 0; i < polygon.length; i++)
+			points[i] = new Point((polygon[i].x-offsetX)/scale, (polygon[i].y-offsetY)/scale);
+		Core.fillPoly(mask, Arrays.asList(new MatOfPoint(points)), value);
+	}
+}
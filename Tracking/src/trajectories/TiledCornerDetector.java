@@ -0,0 +1,220 @@
+package trajectories;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Interest point detection by tiles. The grayscale image is split in a grid of tiles, and the
+ * corners of each tile are detected separately (in parallel, if an executor is given), with a
+ * maximum number of corners for each tile. As the quality threshold is relative to the best corner
+ * of each tile, and each tile has its own budget, corners are spread over the image, instead of
+ * being concentrated in the most textured region.
+ * Tiles are detected with a margin around them, so that corners near the tile borders are computed
+ * with their actual neighbourhood; each tile only keeps the corners inside it. When merging, the
+ * minimum distance between corners is also checked across tile borders: corners are taken in tile
+ * order (and by quality inside each tile), and a corner too close to one already taken is dropped.
+ * The result does not depend on the number of threads. With regions of interest (see
+ * setRegions), tiles cover their bounding rectangle, and corners are restricted to the regions
+ * through the mask; tiles outside the bounds of all the regions are not detected.
+ */
+public class TiledCornerDetector extends CornerDetector {
+
+	/**
+	 * Margin of the tiles, in pixels.
+	 */
+	public static final int MARGIN = (int) MIN_DISTANCE;
+	
+	/**
+	 * Number of tiles in each dimension.
+	 */
+	private final int rows, cols;
+	/**
+	 * Maximum number of corners for each tile, for MAX_CORNERS corners in the frame, and for the
+	 * current maximum (see setMaxCorners).
+	 */
+	private final int baseCornersPerTile;
+	private int cornersPerTile;
+	/**
+	 * Threads for the detection, or null to detect in the calling thread.
+	 */
+	private final ExecutorService executor;
+	/**
+	 * Detection task for each tile.
+	 */
+	private final ArrayList<Tile> tiles = new ArrayList<Tile>();
+	
+	/**
+	 * Constructor, with the same total number of corners than CornerDetector.
+	 * @param rows Number of rows of tiles.
+	 * @param cols Number of columns of tiles.
+	 * @param executor Threads for the detection, or null to detect in the calling thread.
+	 */
+	public TiledCornerDetector(final int rows, final int cols, final ExecutorService executor) {
+		this(rows, cols, (MAX_CORNERS+rows*cols-1)/(rows*cols), executor);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param rows Number of rows of tiles.
+	 * @param cols Number of columns of tiles.
+	 * @param cornersPerTile Maximum number of corners for each tile.
+	 * @param executor Threads for the detection, or null to detect in the calling thread.
+	 */
+	public TiledCornerDetector(final int rows, final int cols, final int cornersPerTile, final ExecutorService executor) {
+		if (rows < 1 || cols < 1 || cornersPerTile < 1)
+			throw new IllegalArgumentException("Tiles and corners per tile must be positive");
+		this.rows = rows;
+		this.cols = cols;
+		this.baseCornersPerTile = cornersPerTile;
+		this.cornersPerTile = cornersPerTile;
+		this.executor = executor;
+		for (int i = 0; i < rows*cols; i++)
+			tiles.add(new Tile());
+	}
+	
+	/**
+	 * Set the maximum number of interest points for each frame. The number of corners of each
+	 * tile is scaled in the same proportion, relative to MAX_CORNERS.
+	 * @param maxCorners Maximum number of interest points.
+	 */
+	@Override
+	public void setMaxCorners(final int maxCorners) {
+		super.setMaxCorners(maxCorners);
+		cornersPerTile = Math.max(1, (int) Math.ceil((double) baseCornersPerTile * maxCorners / MAX_CORNERS));
+	}
+	
+	@Override
+	public void findCorners(final Frame frame, final Mat mask) {
+		int width = frame.gray.cols(), height = frame.gray.rows();
+		//Restrict the mask to the regions of interest, if any.
+		Mat tileMask = regionMask(mask);
+		
+		//Set the region of each tile.
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				Tile tile = tiles.get(r*cols+c);
+				tile.gray = frame.gray;
+				tile.mask = tileMask;
+				tile.x0 = c*width/cols;
+				tile.x1 = (c+1)*width/cols;
+				tile.y0 = r*height/rows;
+				tile.y1 = (r+1)*height/rows;
+				tile.outside = !inRegions(tile.x0, tile.y0, tile.x1, tile.y1);
+			}
+		}
+		
+		//Detect the corners of each tile.
+		if (executor == null) {
+			for (Tile tile : tiles)
+				tile.call();
+		}
+		else {
+			try {
+				for (Future<Void> f : executor.invokeAll(tiles))
+					f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		
+		//Merge the corners of all the tiles, checking the minimum distance near the borders.
+		int total = 0;
+		for (Tile tile : tiles)
+			total += tile.count;
+		if (frame.corners.length < 2*total)
+			frame.corners = new int[2*total];
+		int[] corners = frame.corners;
+		int size = 0;
+		for (Tile tile : tiles) {
+			tile.gray = null;
+			tile.mask = null;
+			for (int i = 0; i < tile.count; i++) {
+				int x = tile.corners[2*i], y = tile.corners[2*i+1];
+				//Only corners near the border of their tile can be close to other tiles corners.
+				if (tile.nearBorder(x, y) && tooClose(corners, size, x, y))
+					continue;
+				corners[2*size] = x;
+				corners[2*size+1] = y;
+				size++;
+			}
+		}
+		frame.cornerCount = size;
+	}
+	
+	/**
+	 * Detection of the corners of a tile. Each tile has its own working data, kept between frames.
+	 */
+	private class Tile implements Callable<Void> {
+		/**
+		 * Image and mask (null for the whole image), and region of the tile in them (x1 and y1
+		 * not included).
+		 */
+		Mat gray, mask;
+		int x0, y0, x1, y1;
+		/**
+		 * Whether the tile is outside the regions of interest, so it has no corners.
+		 */
+		boolean outside;
+		/**
+		 * Corners found in the tile (image coordinates).
+		 */
+		int[] corners = new int[0];
+		int count;
+		private MatOfPoint crn = new MatOfPoint();
+		
+		@Override
+		public Void call() {
+			if (outside) {
+				count = 0;
+				return null;
+			}
+			//Region with margin.
+			int left = Math.max(x0-MARGIN, 0), top = Math.max(y0-MARGIN, 0);
+			int right = Math.min(x1+MARGIN, gray.cols()), bottom = Math.min(y1+MARGIN, gray.rows());
+			Rect rect = new Rect(left, top, right-left, bottom-top);
+			Mat region = gray.submat(rect);
+			if (mask == null)
+				Imgproc.goodFeaturesToTrack(region, crn, cornersPerTile, QUALITY, MIN_DISTANCE);
+			else {
+				Mat regionMask = mask.submat(rect);
+				Imgproc.goodFeaturesToTrack(region, crn, cornersPerTile, QUALITY, MIN_DISTANCE, regionMask, 3, false, 0.04);
+				regionMask.release();
+			}
+			region.release();
+			int size = crn.rows();
+			if (corners.length < 2*size)
+				corners = new int[2*size];
+			if (size > 0)
+				crn.get(0, 0, corners);
+			//Keep the corners inside the tile, in image coordinates.
+			count = 0;
+			for (int i = 0; i < size; i++) {
+				int x = corners[2*i]+left, y = corners[2*i+1]+top;
+				if (x < x0 || x >= x1 || y < y0 || y >= y1)
+					continue;
+				corners[2*count] = x;
+				corners[2*count+1] = y;
+				count++;
+			}
+			return null;
+		}
+		
+		/**
+		 * Check if a point of the tile is nearer than the minimum distance to its border.
+		 */
+		boolean nearBorder(final int x, final int y) {
+			return x-x0 < MIN_DISTANCE || x1-1-x < MIN_DISTANCE || y-y0 < MIN_DISTANCE || y1-1-y < MIN_DISTANCE;
+		}
+	}
+}
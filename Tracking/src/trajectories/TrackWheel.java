@@ -0,0 +1,170 @@
+package trajectories;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Active trajectories of the tracker, organized as a timing wheel by the time of their last node.
+ * The wheel has a slot for each time of the last MAX_OCCLUSIONS+1 frames (slot time % size), so at
+ * time t, the slot of time t-1-i has the trajectories with i occlusions, and the slot of time
+ * t-1-MAX_OCCLUSIONS, which is also the slot of time t, has the trajectories that finish. Thus,
+ * trajectories are not classified again each frame, and finished trajectories are found without
+ * looking at the rest. Each slot is an array of trajectories, sorted by creation (ID), so that
+ * trajectories are processed in the same order than in a list of all the active trajectories.
+ * When the tracker skips frames (see Trajectories.setFrameSkip), the wheel is indexed by processed
+ * frame (step) instead of by time.
+ */
+class TrackWheel {
+
+	/**
+	 * Trajectories of each slot, and number of them.
+	 */
+	private final Trajectory[][] slots;
+	private final int[] counts;
+	/**
+	 * Position of each run in merge.
+	 */
+	private final int[] cursors;
+	
+	/**
+	 * Constructor.
+	 * @param size Number of slots.
+	 */
+	TrackWheel(final int size) {
+		slots = new Trajectory[size][];
+		counts = new int[size];
+		cursors = new int[size];
+		for (int i = 0; i < size; i++)
+			slots[i] = new Trajectory[16];
+	}
+	
+	/**
+	 * Slot for a time.
+	 */
+	int slot(final int time) {
+		return time % slots.length;
+	}
+	
+	/**
+	 * Number of trajectories of a slot.
+	 */
+	int size(final int slot) {
+		return counts[slot];
+	}
+	
+	/**
+	 * Number of trajectories of all the slots.
+	 */
+	int size() {
+		int size = 0;
+		for (int count : counts)
+			size += count;
+		return size;
+	}
+	
+	/**
+	 * Trajectory of a slot.
+	 */
+	Trajectory get(final int slot, final int i) {
+		return slots[slot][i];
+	}
+	
+	/**
+	 * Add a trajectory at the end of a slot. It must be created after the rest of trajectories
+	 * of the slot.
+	 */
+	void add(final int slot, final Trajectory tr) {
+		if (counts[slot] == slots[slot].length)
+			slots[slot] = Arrays.copyOf(slots[slot], 2*counts[slot]);
+		slots[slot][counts[slot]++] = tr;
+	}
+	
+	/**
+	 * Remove all the trajectories of a slot.
+	 */
+	void clear(final int slot) {
+		Arrays.fill(slots[slot], 0, counts[slot], null);
+		counts[slot] = 0;
+	}
+	
+	/**
+	 * Remove from a slot the trajectories not marked to be kept, keeping the order of the rest.
+	 * @param slot Slot.
+	 * @param keep For each trajectory of the slot, true to keep it.
+	 */
+	void retain(final int slot, final boolean[] keep) {
+		Trajectory[] trs = slots[slot];
+		int n = 0;
+		for (int i = 0; i < counts[slot]; i++) {
+			if (keep[i])
+				trs[n++] = trs[i];
+		}
+		Arrays.fill(trs, n, counts[slot], null);
+		counts[slot] = n;
+	}
+	
+	/**
+	 * Remove from a slot the trajectories whose last node is not at the given time, keeping the
+	 * order of the rest.
+	 * @param slot Slot.
+	 * @param time Time of the last node of the trajectories to keep.
+	 */
+	void compact(final int slot, final int time) {
+		Trajectory[] trs = slots[slot];
+		int n = 0;
+		for (int i = 0; i < counts[slot]; i++) {
+			if (trs[i].end() == time)
+				trs[n++] = trs[i];
+		}
+		Arrays.fill(trs, n, counts[slot], null);
+		counts[slot] = n;
+	}
+	
+	/**
+	 * Add to a slot the trajectories of several lists whose last node is at the given time. Each
+	 * list must be sorted by ID, and the result is also sorted by ID.
+	 * @param slot Slot, which must be empty.
+	 * @param runs Lists of correspondences, sorted by the ID of their trajectories.
+	 * @param time Time of the last node of the trajectories to add.
+	 */
+	void merge(final int slot, final ArrayList<ArrayList<PointCorrespondence>> runs, final int time) {
+		Arrays.fill(cursors, 0);
+		while (true) {
+			//Get the run with the lowest ID, among the next trajectory of each run.
+			int best = -1, bestID = 0;
+			for (int i = 0; i < runs.size(); i++) {
+				ArrayList<PointCorrespondence> run = runs.get(i);
+				while (cursors[i] < run.size() && run.get(cursors[i]).trajectory.end() != time)
+					cursors[i]++;
+				if (cursors[i] < run.size()) {
+					int ID = run.get(cursors[i]).trajectory.getID();
+					if (best < 0 || ID < bestID) {
+						best = i;
+						bestID = ID;
+					}
+				}
+			}
+			if (best < 0)
+				return;
+			add(slot, runs.get(best).get(cursors[best]++).trajectory);
+		}
+	}
+	
+	/**
+	 * All the active trajectories, sorted by ID.
+	 */
+	ArrayList<Trajectory> all() {
+		ArrayList<Trajectory> all = new ArrayList<Trajectory>();
+		for (int s = 0; s < slots.length; s++)
+			all.addAll(Arrays.asList(slots[s]).subList(0, counts[s]));
+		Collections.sort(all, new Comparator<Trajectory>() {
+			@Override
+			public int compare(final Trajectory a, final Trajectory b) {
+				return a.getID() < b.getID() ? -1 : (a.getID() == b.getID() ? 0 : 1);
+			}
+		});
+		return all;
+	}
+}
@@ -0,0 +1,306 @@
+package trajectories;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of a tracker (see Trajectories.setMetrics): time of each stage of the
+ * processing of a frame, as latency histograms, and counters of trajectories and points. The
+ * metrics can be read through JMX (register), or written periodically to a CSV file (startCsv).
+ * Without metrics, the tracker does not measure anything.
+ */
+public class TrackerMetrics implements TrackerMetricsMBean {
+
+	/**
+	 * Stages of a frame: interest point detection (grayscale conversion and corners), prediction
+	 * of the trajectories, output of the finished trajectories, optical flow pyramid, optical flow,
+	 * point search (including its initialization), update of the trajectories (and creation of the
+	 * new ones), and update of the image buffer. FRAME is the whole tracking of a frame, without
+	 * the detection when it is done apart (see TrackingPipeline).
+	 */
+	public static final int DETECT = 0;
+	public static final int PREDICT = 1;
+	public static final int WRITE = 2;
+	public static final int PYRAMID = 3;
+	public static final int FLOW = 4;
+	public static final int MATCH = 5;
+	public static final int UPDATE = 6;
+	public static final int BUFFER = 7;
+	public static final int FRAME = 8;
+	/**
+	 * Names of the stages.
+	 */
+	public static final String[] STAGES = {"detect", "predict", "write", "pyramid", "flow", "match", "update", "buffer", "frame"};
+
+	private final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length];
+	/**
+	 * Totals, and values of the last frame.
+	 */
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong finished = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+	private final AtomicLong matched = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	private final AtomicLong flowFailures = new AtomicLong();
+	private volatile int active, lastCreated, lastMatched, lastLost, lastFlowFailures, quality;
+	/**
+	 * Periodic output to CSV file.
+	 */
+	private ScheduledExecutorService csvTimer;
+	private PrintWriter csv;
+
+	/**
+	 * Constructor.
+	 */
+	public TrackerMetrics() {
+		for (int i = 0; i < stages.length; i++)
+			stages[i] = new LatencyHistogram();
+	}
+
+	/**
+	 * Histogram of the time of a stage.
+	 * @param stage Stage (DETECT ... FRAME).
+	 */
+	public LatencyHistogram stage(final int stage) {
+		return stages[stage];
+	}
+
+	/**
+	 * Record the time of a stage, from the given start to now.
+	 * @param stage Stage (DETECT ... FRAME).
+	 * @param start Start of the stage (System.nanoTime).
+	 * @return Now (System.nanoTime), as start for the next stage.
+	 */
+	public long mark(final int stage, final long start) {
+		long now = System.nanoTime();
+		stages[stage].record(now - start);
+		return now;
+	}
+
+	/**
+	 * Count the trajectories removed in a frame.
+	 * @param finished Trajectories written to the output.
+	 * @param discarded Trajectories too short to be written.
+	 */
+	void removed(final int finished, final int discarded) {
+		this.finished.addAndGet(finished);
+		this.discarded.addAndGet(discarded);
+	}
+
+	/**
+	 * Count the optical flow failures (points not found) of a frame.
+	 */
+	void flow(final int failures) {
+		flowFailures.addAndGet(failures);
+		lastFlowFailures = failures;
+	}
+
+	/**
+	 * Count the result of the correction of a frame, and finish the frame.
+	 * @param created New trajectories.
+	 * @param matched Predictions updated with a point.
+	 * @param lost Predictions without point.
+	 * @param active Active trajectories after the frame.
+	 */
+	void frame(final int created, final int matched, final int lost, final int active) {
+		this.created.addAndGet(created);
+		this.matched.addAndGet(matched);
+		this.lost.addAndGet(lost);
+		lastCreated = created;
+		lastMatched = matched;
+		lastLost = lost;
+		this.active = active;
+		frames.incrementAndGet();
+	}
+
+	/**
+	 * Set the current quality level of the real-time mode (see QualityController).
+	 */
+	void quality(final int level) {
+		quality = level;
+	}
+
+	@Override
+	public int getQualityLevel() {
+		return quality;
+	}
+
+	@Override
+	public long getFrames() {
+		return frames.get();
+	}
+
+	@Override
+	public int getActiveTrajectories() {
+		return active;
+	}
+
+	@Override
+	public long getCreatedTrajectories() {
+		return created.get();
+	}
+
+	@Override
+	public long getFinishedTrajectories() {
+		return finished.get();
+	}
+
+	@Override
+	public long getDiscardedTrajectories() {
+		return discarded.get();
+	}
+
+	@Override
+	public long getMatchedPoints() {
+		return matched.get();
+	}
+
+	@Override
+	public long getLostPoints() {
+		return lost.get();
+	}
+
+	@Override
+	public long getFlowFailures() {
+		return flowFailures.get();
+	}
+
+	@Override
+	public int getLastCreated() {
+		return lastCreated;
+	}
+
+	@Override
+	public int getLastMatched() {
+		return lastMatched;
+	}
+
+	@Override
+	public int getLastLost() {
+		return lastLost;
+	}
+
+	@Override
+	public int getLastFlowFailures() {
+		return lastFlowFailures;
+	}
+
+	@Override
+	public String[] getStages() {
+		String[] summary = new String[STAGES.length];
+		for (int i = 0; i < STAGES.length; i++) {
+			LatencyHistogram h = stages[i];
+			summary[i] = String.format("%s: n=%d p50=%.1f p99=%.1f max=%.1f us", STAGES[i], h.count(),
+					h.percentile(50)*1e-3, h.percentile(99)*1e-3, h.max()*1e-3);
+		}
+		return summary;
+	}
+
+	@Override
+	public double percentile(final String stage, final double percentile) {
+		for (int i = 0; i < STAGES.length; i++) {
+			if (STAGES[i].equals(stage))
+				return stages[i].percentile(percentile)*1e-3;
+		}
+		throw new IllegalArgumentException("Unknown stage: " + stage);
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram h : stages)
+			h.reset();
+		frames.set(0);
+		created.set(0);
+		finished.set(0);
+		discarded.set(0);
+		matched.set(0);
+		lost.set(0);
+		flowFailures.set(0);
+	}
+
+	/**
+	 * Register the metrics in the platform MBean server, as trajectories:type=TrackerMetrics,name=(name).
+	 * @param name Name of the tracker (for instance, the video file).
+	 * @return Name of the MBean, to unregister it.
+	 * @throws JMException
+	 */
+	public ObjectName register(final String name) throws JMException {
+		ObjectName objectName = new ObjectName("trajectories:type=TrackerMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * Start the periodic output to a CSV file: a header, and then a row for each period, with
+	 * the time (ms), the counters, and the median, 99th percentile and maximum time of each stage
+	 * (us). Values are totals since the start.
+	 * @param file Name of the CSV file.
+	 * @param period Time between rows.
+	 * @param unit Unit of period.
+	 * @throws IOException
+	 */
+	public synchronized void startCsv(final String file, final long period, final TimeUnit unit) throws IOException {
+		stopCsv();
+		csv = new PrintWriter(new FileWriter(file));
+		StringBuilder header = new StringBuilder("time,frames,quality,active,created,finished,discarded,matched,lost,flowFailures");
+		for (String stage : STAGES)
+			header.append(',').append(stage).append("P50,").append(stage).append("P99,").append(stage).append("Max");
+		csv.println(header);
+		csvTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "TrackerMetrics CSV");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		csvTimer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				writeCsv();
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Write the last row and stop the periodic output, if it is running.
+	 */
+	public synchronized void stopCsv() {
+		if (csvTimer == null)
+			return;
+		csvTimer.shutdownNow();
+		csvTimer = null;
+		writeCsv();
+		csv.close();
+		csv = null;
+	}
+
+	/**
+	 * Write a row of the CSV file.
+	 */
+	private synchronized void writeCsv() {
+		if (csv == null)
+			return;
+		StringBuilder row = new StringBuilder();
+		row.append(System.currentTimeMillis()).append(',').append(frames.get()).append(',').append(quality).append(',').append(active)
+				.append(',').append(created.get()).append(',').append(finished.get()).append(',').append(discarded.get())
+				.append(',').append(matched.get()).append(',').append(lost.get()).append(',').append(flowFailures.get());
+		for (LatencyHistogram h : stages) {
+			row.append(',').append(h.percentile(50)/1000).append(',').append(h.percentile(99)/1000)
+					.append(',').append(h.max()/1000);
+		}
+		csv.println(row);
+		csv.flush();
+	}
+}
@@ -0,0 +1,49 @@
+package trajectories;
+
+/**
+ * JMX interface of TrackerMetrics. Counters are totals since the start (or the last reset), and
+ * the values of the last frame; times are in microseconds.
+ */
+public interface TrackerMetricsMBean {
+
+	public long getFrames();
+
+	/**
+	 * Quality level of the real-time mode (0 for the full quality, see QualityController).
+	 */
+	public int getQualityLevel();
+
+	public int getActiveTrajectories();
+
+	public long getCreatedTrajectories();
+
+	public long getFinishedTrajectories();
+
+	public long getDiscardedTrajectories();
+
+	public long getMatchedPoints();
+
+	public long getLostPoints();
+
+	public long getFlowFailures();
+
+	public int getLastCreated();
+
+	public int getLastMatched();
+
+	public int getLastLost();
+
+	public int getLastFlowFailures();
+
+	/**
+	 * Summary of the time of each stage: number of values, median, 99th percentile and maximum.
+	 */
+	public String[] getStages();
+
+	/**
+	 * Percentile of the time of a stage (see TrackerMetrics.STAGES), in microseconds.
+	 */
+	public double percentile(String stage, double percentile);
+
+	public void reset();
+}
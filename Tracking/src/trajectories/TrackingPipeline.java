@@ -0,0 +1,351 @@
+package trajectories;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.opencv.highgui.VideoCapture;
+
+/**
+ * Pipelined processing of a video. Frames go through three stages, each one in its own thread:
+ * decoding, interest point detection (grayscale conversion and corners), and tracking (optical
+ * flow, point search and trajectory update). Decoding and detection do not depend on the
+ * trajectories, so they are done for the next frames while the tracker processes the current one.
+ * Stages are connected by bounded queues, and frames are taken from a fixed pool, so the number
+ * of frames in process is limited. Frames are processed in order, so trajectories are the same
+ * than with Trajectories.update for each image.
+ * With frame skipping (see setFrameSkip), the decoding stage asks the tracker for the next frame
+ * to process: the frames before it are grabbed and discarded, without decoding them into an image
+ * nor detecting their interest points, and the tracker only counts them. The frames after it are
+ * decoded in advance, as without frame skipping, since the tracker decides which one is next when
+ * it processes the previous one; the ones that are not processed are only counted.
+ */
+public class TrackingPipeline {
+
+	/**
+	 * Input video.
+	 */
+	private final VideoCapture video;
+	/**
+	 * Output for finished trajectories (null for the XML document, see Trajectories).
+	 */
+	private final TrajectorySink sink;
+	/**
+	 * Free frames, and frames waiting for detection and for tracking.
+	 */
+	private final ArrayBlockingQueue<Frame> free, decoded, detected;
+	/**
+	 * Frame sent after the last one, to finish the stages.
+	 */
+	private final Frame end = new Frame();
+	/**
+	 * Interest point detection for the detection stage.
+	 */
+	private CornerDetector detector = new CornerDetector();
+	/**
+	 * Threads for the decoding and detection stages, shared with other pipelines, or null to
+	 * create them for each run.
+	 */
+	private ExecutorService stages;
+	/**
+	 * Maximum number of frames to process.
+	 */
+	private int maxFrames = Integer.MAX_VALUE;
+	/**
+	 * Frame skipping of the tracker (see Trajectories.setFrameSkip).
+	 */
+	private int maxSkip = 1;
+	private double skipMotion = 4;
+	private boolean interpolate;
+	/**
+	 * Tracker, created with the first frame. It is read by the decoding stage.
+	 */
+	private volatile Trajectories trajectories;
+	/**
+	 * Instrumentation of the detection stage and of the tracker, or null.
+	 */
+	private TrackerMetrics metrics;
+	/**
+	 * Set when run ends, so that the decoding stage stops between reads, and count of the stages
+	 * that have not exited yet (see Stage).
+	 */
+	private volatile boolean stopping;
+	private CountDownLatch running;
+	
+	/**
+	 * Constructor.
+	 * @param video Input video, already opened.
+	 * @param sink Output for finished trajectories (null for the XML document).
+	 * @param frames Number of frames in process at the same time (at least 3, one for each stage).
+	 */
+	public TrackingPipeline(final VideoCapture video, final TrajectorySink sink, final int frames) {
+		if (frames < 3)
+			throw new IllegalArgumentException("At least 3 frames are needed: " + frames);
+		this.video = video;
+		this.sink = sink;
+		free = new ArrayBlockingQueue<Frame>(frames);
+		//Queues have room for all the frames and the end mark, so that stages never wait to put.
+		decoded = new ArrayBlockingQueue<Frame>(frames+1);
+		detected = new ArrayBlockingQueue<Frame>(frames+1);
+		for (int i = 0; i < frames; i++)
+			free.add(new Frame());
+	}
+	
+	/**
+	 * Set the maximum number of frames to process.
+	 * @param maxFrames Maximum number of frames.
+	 */
+	public void setMaxFrames(final int maxFrames) {
+		this.maxFrames = maxFrames;
+	}
+	
+	/**
+	 * Set the frame skipping of the tracker (see Trajectories.setFrameSkip). The frames that the
+	 * tracker skips are discarded by the decoding stage, without decoding nor detection.
+	 * @param maxSkip Maximum number of frames between processed frames (1 to disable the mode).
+	 * @param motion Maximum motion between processed frames, in pixels.
+	 * @param interpolate true to add to the trajectories a node for each skipped frame.
+	 */
+	public void setFrameSkip(final int maxSkip, final double motion, final boolean interpolate) {
+		if (maxSkip < 1 || motion <= 0)
+			throw new IllegalArgumentException("Invalid frame skipping: " + maxSkip + ", " + motion);
+		this.maxSkip = maxSkip;
+		this.skipMotion = motion;
+		this.interpolate = interpolate;
+	}
+	
+	/**
+	 * Set the interest point detection for the detection stage.
+	 * @param detector Interest point detection (for instance, a TiledCornerDetector).
+	 */
+	public void setDetector(final CornerDetector detector) {
+		this.detector = detector;
+	}
+	
+	/**
+	 * Set the instrumentation of the pipeline: time of the detection stage, and metrics of the
+	 * tracker (see Trajectories.setMetrics). It must be set before run.
+	 * @param metrics Metrics where the measures are added, or null to measure nothing.
+	 */
+	public void setMetrics(final TrackerMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Set the threads for the decoding and detection stages, so that several pipelines can share
+	 * them. Each running pipeline uses two threads while it runs, so the executor must be able to
+	 * run two tasks for each pipeline at the same time (for instance, a cached thread pool).
+	 * @param stages Threads for the stages, or null to create them for each run.
+	 */
+	public void setStageExecutor(final ExecutorService stages) {
+		this.stages = stages;
+	}
+	
+	/**
+	 * Tracker of the pipeline, to close it (or to get the trajectories) after run.
+	 * @return Tracker, or null if the video does not have any frame.
+	 */
+	public Trajectories getTrajectories() {
+		return trajectories;
+	}
+	
+	/**
+	 * Process the video, until its end or the maximum number of frames. Tracking runs in the
+	 * calling thread. The other stages have exited when it returns (also on errors), so the video
+	 * can be released then.
+	 * @return Number of frames of the video, including the ones skipped by the tracker.
+	 * @throws IOException Error writing trajectories.
+	 * @throws ParserConfigurationException
+	 * @throws InterruptedException
+	 */
+	public int run() throws IOException, ParserConfigurationException, InterruptedException {
+		ExecutorService stages = this.stages != null ? this.stages : Executors.newFixedThreadPool(2);
+		stopping = false;
+		running = new CountDownLatch(2);
+		Stage decodingStage = new Stage() {
+			@Override
+			void process() throws InterruptedException {
+				decode();
+			}
+		};
+		Stage detectionStage = new Stage() {
+			@Override
+			void process() throws InterruptedException {
+				detect();
+			}
+		};
+		Future<Void> decoding = null, detecting = null;
+		try {
+			decoding = stages.submit(decodingStage);
+			detecting = stages.submit(detectionStage);
+			
+			int frames = 0;
+			Frame frame = detected.take();
+			while (frame != end) {
+				if (trajectories == null) {
+					Trajectories trajectories = new Trajectories(frame, sink);
+					trajectories.setMetrics(metrics);
+					trajectories.setFrameSkip(maxSkip, skipMotion, interpolate);
+					//The decoding stage asks the tracker once it is configured.
+					this.trajectories = trajectories;
+				}
+				else {
+					//Count the frames discarded by the decoding stage before this one.
+					trajectories.skipFrames(frame.skipped);
+					trajectories.update(frame);
+				}
+				frames += 1 + frame.skipped;
+				free.put(frame);
+				frame = detected.take();
+			}
+			if (trajectories != null)
+				trajectories.skipFrames(end.skipped);
+			frames += end.skipped;
+			//Report errors of the other stages. The detection is checked first: if it failed, the
+			//  tracking ends, but the decoding is still waiting for free frames, so it is stopped.
+			try {
+				detecting.get();
+			} catch (ExecutionException e) {
+				decoding.cancel(true);
+				throw new IllegalStateException(e.getCause());
+			}
+			try {
+				decoding.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+			return frames;
+		} finally {
+			//Stop the other stages (they have already finished, unless there is an error), and wait
+			//  for them to exit: the caller releases the video after run, and an interrupt does not
+			//  stop a read in progress.
+			stopping = true;
+			decodingStage.skip();
+			detectionStage.skip();
+			if (stages != this.stages)
+				stages.shutdownNow();
+			else {
+				//Shared threads: stop only the stages of this pipeline.
+				if (decoding != null)
+					decoding.cancel(true);
+				if (detecting != null)
+					detecting.cancel(true);
+			}
+			awaitStages();
+		}
+	}
+	
+	/**
+	 * Wait for the decoding and detection stages to exit. The wait is not interrupted (the
+	 * interrupt is kept for the caller), so that run never returns while a stage uses the video.
+	 */
+	private void awaitStages() {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				running.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Task of the decoding or detection stage. The exit of the task is counted in running, also if
+	 * it never runs: a task that has not started when run ends is skipped, and does nothing if it
+	 * starts later.
+	 */
+	private abstract class Stage implements Callable<Void> {
+		private final AtomicBoolean started = new AtomicBoolean();
+		
+		@Override
+		public Void call() throws InterruptedException {
+			if (!started.compareAndSet(false, true))
+				return null;
+			try {
+				process();
+			} finally {
+				running.countDown();
+			}
+			return null;
+		}
+		
+		/**
+		 * Count the task as exited if it has not started, so that it never runs.
+		 */
+		void skip() {
+			if (started.compareAndSet(false, true))
+				running.countDown();
+		}
+		
+		abstract void process() throws InterruptedException;
+	}
+	
+	/**
+	 * Decoding stage: read the frames of the video into free frames. The frames before the next one
+	 * to process by the tracker are grabbed and discarded, and counted in the next frame (or in
+	 * the end mark). It stops between reads when run ends.
+	 * @throws InterruptedException
+	 */
+	private void decode() throws InterruptedException {
+		int skipped = 0;
+		Frame frame = null;
+		try {
+			for (int i = 0; i < maxFrames && !stopping; i++) {
+				//Take the free frame first, so that the tracker is asked as late as possible.
+				if (frame == null)
+					frame = free.take();
+				Trajectories trajectories = this.trajectories;
+				if (trajectories != null && i < trajectories.getNextFrame()) {
+					if (!video.grab())
+						break;
+					skipped++;
+					continue;
+				}
+				if (!video.read(frame.image) || frame.image.empty())
+					break;
+				frame.skipped = skipped;
+				skipped = 0;
+				decoded.put(frame);
+				frame = null;
+			}
+		} finally {
+			if (frame != null)
+				free.put(frame);
+			end.skipped = skipped;
+			decoded.put(end);
+		}
+	}
+	
+	/**
+	 * Detection stage: compute the grayscale image and the interest points of decoded frames.
+	 * @throws InterruptedException
+	 */
+	private void detect() throws InterruptedException {
+		try {
+			TrackerMetrics metrics = this.metrics;
+			Frame frame = decoded.take();
+			while (frame != end) {
+				long start = metrics != null ? System.nanoTime() : 0;
+				detector.detect(frame);
+				if (metrics != null)
+					metrics.mark(TrackerMetrics.DETECT, start);
+				detected.put(frame);
+				frame = decoded.take();
+			}
+		} finally {
+			detected.put(end);
+		}
+	}
+}
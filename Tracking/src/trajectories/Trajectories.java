@@ -1,6 +1,12 @@
 package trajectories;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 import org.opencv.core.*;
 import org.opencv.imgproc.*;
@@ -10,6 +16,7 @@ import org.opencv.video.*;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -27,74 +34,549 @@ public class Trajectories {
 	 */
 	public static final int MAX_OCCLUSIONS = 5;
 	/**
-	 * List of active trajectories. Trajectories are created and destroyed as they appear and
-	 * disappear from the video.
+	 * Active trajectories, by the time of their last node (see TrackWheel). Trajectories are
+	 * created and destroyed as they appear and disappear from the video.
 	 */
-	LinkedList<Trajectory> trajectories;
+	TrackWheel trajectories;
 	/**
 	 * Current time for the video. Time starts at 0 for the first frame.
 	 */
 	int time;
+	/**
+	 * Number of processed frames: the same than time, unless frames are skipped (see
+	 * setFrameSkip). The image buffer and the occlusions of the trajectories are counted in
+	 * processed frames, and the time of the last ones is kept in stepTimes (by the slot of the
+	 * step in the trajectory wheel).
+	 */
+	int step;
+	int[] stepTimes = new int[MAX_OCCLUSIONS+1];
+	/**
+	 * Frame skipping (see setFrameSkip): maximum and current number of frames between processed
+	 * frames (1 to process all the frames), motion of the trajectories between processed frames,
+	 * interpolation of the skipped nodes, and time of the next frame to process (read by other
+	 * threads, see getNextFrame).
+	 */
+	int maxSkip = 1;
+	int skip = 1;
+	double skipMotion = 4;
+	boolean interpolate;
+	volatile int nextFrame;
+	/**
+	 * Motion of each trajectory in the last frame, for the frame skipping.
+	 */
+	float[] speeds = new float[0];
+	/**
+	 * ID for the next trajectory. IDs are unique for each tracker (that is, for each video), so
+	 * several trackers can run at the same time.
+	 */
+	int nextID;
+	/**
+	 * Dynamic filters of the active trajectories, processed for each frame all together (see
+	 * FilterBank). The filters are arranged in the bank in the order of the wheel (see
+	 * orderFilters): the filter of the trajectory j of a slot of the wheel is in the slot
+	 * filterStart[slot]+j of the bank. Working arrays for them: order for the arrangement, and
+	 * positions.
+	 */
+	FilterBank filters = new FilterBank(256);
+	int[] filterStart = new int[MAX_OCCLUSIONS+1];
+	int[] filterOrder = new int[0];
+	double[] filterX = new double[0];
+	double[] filterY = new double[0];
+	/**
+	 * Number of pyramid levels for the optical flow, apart from the image itself.
+	 */
+	public static final int PYRAMID_LEVELS = 3;
 	/**
 	 * Buffer to store the last frames of the video. The number of images to store coincides with
 	 * the maximum number of occlusions allowed to the trajectory, for the optical flow algorithm to
-	 * compute it from the proper image.
+	 * compute it from the proper image. Each frame is stored as the optical flow pyramid of its
+	 * grayscale image, so that the pyramid is computed only once for each frame. Pyramids are
+	 * reused for new frames, when their frame is not needed any more.
+	 */
+	ImagePyramid[] buffer = new ImagePyramid[MAX_OCCLUSIONS];
+	/**
+	 * Optical flow pyramid of the current frame. It is moved into the buffer at the end of the
+	 * frame.
 	 */
-	Mat[] buffer=new Mat[MAX_OCCLUSIONS];
+	ImagePyramid pyramid = new ImagePyramid(PYRAMID_LEVELS);
 	
 	/**
-	 * Auxiliary structure, to optimize searching of points
+	 * Auxiliary structure, to optimize searching of points. It is created with the first frame,
+	 * with the size of its processed image.
 	 */
 	PointSearch search;
+	/**
+	 * Reduction of the processed images (see CornerDetector.setScale), taken from the first frame.
+	 * Trajectories are tracked in the coordinates of the reduced images, and mapped to the full
+	 * resolution when they are written. Distances of the other options (as the radius of the
+	 * incremental mode) are also in the reduced images.
+	 */
+	int scale = 1;
+	/**
+	 * Regions of interest (see CornerDetector.setRegions), taken from the first frame, or null for
+	 * the whole image, and position of the processed part of the image. Trajectories whose last
+	 * node is outside all the regions are finished.
+	 */
+	Region[] regions;
+	int offsetX, offsetY;
+	boolean[] inside = new boolean[0];
 	
 	/**
 	 * Point correspondences (actual position - predicted position) for each trajectory.
 	 */
 	ArrayList<ArrayList<PointCorrespondence>> positions;
 	
+	/**
+	 * Working data for the optical flow and the interest point detection. They are kept between
+	 * frames, so that the processing of each frame does not create new objects once they have
+	 * grown to the required size.
+	 */
+	TermCriteria flowTerm = new TermCriteria(TermCriteria.MAX_ITER|TermCriteria.EPS, FLOW_ITERATIONS, 0.1);
+	Size flowWindow = new Size(FLOW_WINDOW, FLOW_WINDOW);
+	/**
+	 * Window for the borders of the pyramids: the default one, which is the largest window of the
+	 * quality levels (see setRealTime). The borders do not change with the window, so the
+	 * pyramids of the previous frames, in the buffer, can be used with any window.
+	 */
+	Size pyramidBorder = new Size(FLOW_WINDOW, FLOW_WINDOW);
+	/**
+	 * Default size of the optical flow window, and maximum number of iterations.
+	 */
+	static final int FLOW_WINDOW = 9;
+	static final int FLOW_ITERATIONS = 10;
+	/**
+	 * Number of pyramid levels used for the current frame (PYRAMID_LEVELS, or less in real-time
+	 * mode).
+	 */
+	int pyramidLevels = PYRAMID_LEVELS;
+	/**
+	 * Optical flow tasks (one for each bucket, or for each chunk of a bucket), reused between frames.
+	 */
+	ArrayList<FlowTask> flowTasks = new ArrayList<FlowTask>();
+	/**
+	 * Interest point detection, and frame data for the frames given as images.
+	 */
+	CornerDetector detector = new CornerDetector();
+	Frame frame = new Frame();
+	/**
+	 * Interest points of the current frame (first elements of pointPool).
+	 */
+	ArrayList<PointData> points = new ArrayList<PointData>();
+	/**
+	 * Point objects for the interest points, reused between frames.
+	 */
+	ArrayList<PointData> pointPool = new ArrayList<PointData>();
+	
+	/**
+	 * XML document for the trajectories, without streamed output (null with it), and its
+	 * VideoAnnotation element.
+	 */
 	Document doc;
 	Element xmlElement;
 	/**
-	 * Constructor. Initialize all the parameters
+	 * Output for finished trajectories: the streamed output, or, without it, a sink that adds them
+	 * to the XML document in a background thread (written to file in the close function).
+	 */
+	TrajectorySink sink;
+	/**
+	 * Incremental mode (see setIncremental), and its data: mask of the regions for new interest
+	 * points, its values, radius of the regions of the trajectories, and minimum fraction of
+	 * followed trajectories to skip the detection.
+	 */
+	boolean incremental;
+	Mat mask = new Mat();
+	Scalar maskFree = new Scalar(255);
+	Scalar maskCovered = new Scalar(0);
+	int maskRadius = 8;
+	double coverage = 0.9;
+	/**
+	 * Threads for the correction step (point search and trajectory update). When it is null, the
+	 * correction runs in the calling thread.
+	 */
+	ForkJoinPool pool;
+	/**
+	 * Predictions with an interest point found in the current frame, and the result of their
+	 * update, for the parallel correction.
+	 */
+	PointCorrespondence[] matched = new PointCorrespondence[0];
+	PointData[] matchedPoints = new PointData[0];
+	boolean[] updated = new boolean[0];
+	/**
+	 * Threads for the optical flow computation. When it is null, the optical flow runs in the
+	 * calling thread.
+	 */
+	ExecutorService flowExecutor;
+	/**
+	 * Maximum number of points for each optical flow task, when flowExecutor is set. Larger
+	 * buckets are split in several tasks.
+	 */
+	int flowChunkSize = Integer.MAX_VALUE;
+	/**
+	 * Instrumentation of the tracker (see setMetrics). When it is null, nothing is measured.
+	 */
+	TrackerMetrics metrics;
+	/**
+	 * Quality control of the real-time mode (see setRealTime), or null.
+	 */
+	QualityController quality;
+	/**
+	 * Number of trajectory updates done by each parallel task.
+	 */
+	private static final int UPDATE_TASK_SIZE = 256;
+	/**
+	 * Maximum number of finished trajectories waiting to be written, for the XML file output.
+	 */
+	private static final int SINK_CAPACITY = 4096;
+	/**
+	 * Constructor. Initialize all the parameters. Trajectories are stored in an XML document, and
+	 * written to file in close(videoFile); the document is built in a background thread (see
+	 * AsyncTrajectorySink), so that the frame loop only queues the finished trajectories.
 	 * @throws ParserConfigurationException 
 	 */
 	public Trajectories(final Mat image) throws ParserConfigurationException {
+		this(image, (TrajectorySink) null);
+	}
+	
+	/**
+	 * Constructor for streaming mode. Finished trajectories are written to the file as soon as they
+	 * finish, instead of being kept in memory until the video ends. The file is written in a
+	 * background thread (see AsyncTrajectorySink), which the tracker waits for only if it falls
+	 * behind by more than SINK_CAPACITY trajectories.
+	 * @param image First image of the video.
+	 * @param videoFile Name of the XML output file.
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	public Trajectories(final Mat image, final String videoFile) throws ParserConfigurationException, IOException, XMLStreamException {
+		this(image, new AsyncTrajectorySink(new XMLTrajectoryWriter(videoFile), SINK_CAPACITY, AsyncTrajectorySink.BLOCK));
+	}
+	
+	/**
+	 * Constructor for streaming mode, with the given output (XML or binary file, see
+	 * TrajectoryWriter, or any other TrajectorySink). The sink is used in the calling thread: wrap it
+	 * in an AsyncTrajectorySink to keep the output out of the frame loop.
+	 * @param image First image of the video.
+	 * @param sink Output for finished trajectories. If null, trajectories are stored in an XML
+	 * document, as in the basic constructor.
+	 * @throws ParserConfigurationException
+	 */
+	public Trajectories(final Mat image, final TrajectorySink sink) throws ParserConfigurationException {
+		this(image, sink, 1);
+	}
+	
+	/**
+	 * Constructor for streaming mode, processing the images at a reduced resolution (see
+	 * CornerDetector.setScale). Trajectories are written in the coordinates of the full resolution,
+	 * with octave 1+log2(scale).
+	 * @param image First image of the video.
+	 * @param sink Output for finished trajectories (null for the XML document).
+	 * @param scale Reduction of the processed images: 1 (full resolution), 2, 4 or 8.
+	 * @throws ParserConfigurationException
+	 */
+	public Trajectories(final Mat image, final TrajectorySink sink, final int scale) throws ParserConfigurationException {
+		this(sink);
+		detector.setScale(scale);
+		frame.image = image;
+		detector.detect(frame);
+		start(frame);
+	}
+	
+	/**
+	 * Constructor for streaming mode, for a first frame with its interest points already detected
+	 * (see CornerDetector). The reduction of the processed images is the one of the frame.
+	 * @param first First frame of the video.
+	 * @param sink Output for finished trajectories. If null, trajectories are stored in an XML
+	 * document, as in the basic constructor.
+	 * @throws ParserConfigurationException
+	 */
+	public Trajectories(final Frame first, final TrajectorySink sink) throws ParserConfigurationException {
+		this(sink);
+		start(first);
+	}
+	
+	/**
+	 * Initialize all the parameters (except the ones that depend on the first frame, see start).
+	 * @param sink Output for finished trajectories (null for the XML document).
+	 * @throws ParserConfigurationException
+	 */
+	private Trajectories(final TrajectorySink sink) throws ParserConfigurationException {
 		//Initialize object members:
 		//List of trajectories.
-		trajectories = new LinkedList<Trajectory>();
+		trajectories = new TrackWheel(MAX_OCCLUSIONS+1);
 		//Initial time for the video. Start at 0.
 		time = 0;
-		//Creating structure for the point search. For each frame, it will be populated with incoming points.
-		search = new PointSearch(image.height(), image.width());
+		step = 0;
 		//initialize list of correspondences.
 		positions = new ArrayList<ArrayList<PointCorrespondence>>();
 		for (int i=0; i<MAX_OCCLUSIONS; i++) {
 			positions.add(new ArrayList<PointCorrespondence>());
+			buffer[i] = new ImagePyramid(PYRAMID_LEVELS);
 		}
-		//Create the document XML
-		DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-		doc = docBuilder.newDocument();
-		
-		//Create parent element VideoAnnotation and set date and time of video.
-		xmlElement = doc.createElement("VideoAnnotation");
-		doc.appendChild(xmlElement);
-		Attr attrDate = doc.createAttribute("date");		
-		Date date = new Date();
-		attrDate.setValue( date.toString());
-		//Include attribute date into Videoannotation element		
-		xmlElement.setAttributeNode(attrDate);
-		
-		correct(image, positions);
+		//Output for finished trajectories. Without streamed output, create the document XML.
+		this.sink = sink;
+		if (sink == null) {
+			DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
+			DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
+			doc = docBuilder.newDocument();
+			
+			//Create parent element VideoAnnotation and set date and time of video.
+			xmlElement = doc.createElement("VideoAnnotation");
+			doc.appendChild(xmlElement);
+			Attr attrDate = doc.createAttribute("date");		
+			Date date = new Date();
+			attrDate.setValue( date.toString());
+			//Include attribute date into Videoannotation element		
+			xmlElement.setAttributeNode(attrDate);
+			try {
+				this.sink = new AsyncTrajectorySink(new DocumentTrajectorySink(doc, xmlElement), SINK_CAPACITY, AsyncTrajectorySink.BLOCK);
+			} catch (IOException e) {
+				//Only the SPILL policy creates files.
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Prepare a finished trajectory to be written: map it to the full image, if the images are
+	 * processed at a reduced resolution, or only in part.
+	 */
+	private void toFullResolution(final Trajectory tr) {
+		if (scale > 1 || offsetX != 0 || offsetY != 0)
+			tr.rescale(scale, 1 + Integer.numberOfTrailingZeros(scale), offsetX, offsetY);
+	}
+	
+	/**
+	 * Check if a trajectory is long enough to be written: if it lasts more than MAX_OCCLUSIONS
+	 * processed frames (the same than video frames, unless frames are skipped, see setFrameSkip).
+	 */
+	private static boolean isLongEnough(final Trajectory tr) {
+		return tr.lastStep-tr.firstStep>MAX_OCCLUSIONS;
+	}
+	
+	/**
+	 * Create a trajectory in the current frame, in the slot of the current step.
+	 * @param point First position of the trajectory.
+	 */
+	private void create(final PointDetection point) {
+		Trajectory tr = new Trajectory(point, time, nextID++, filters);
+		tr.firstStep = step;
+		tr.lastStep = step;
+		trajectories.add(trajectories.slot(step), tr);
+	}
+	
+	/**
+	 * Finish a trajectory: write it, if it is long enough, and release its filter.
+	 * @return true if the trajectory has been written.
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 */
+	private boolean finish(final Trajectory tr) throws ParserConfigurationException, IOException {
+		//Check if it is a valid trajectory, that is, is duration in larger than the minimum required.
+		boolean valid = isLongEnough(tr);
+		if (valid) {
+			//If it is a valid trajectory, write it in the output file before remove it.
+			toFullResolution(tr);
+			sink.accept(tr);
+		}
+		//The sink does not use the filter.
+		tr.filter.release();
+		return valid;
+	}
+	
+	/**
+	 * Finish the trajectories updated in the current frame that have left all the regions of
+	 * interest (if there are regions).
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 */
+	private void finishOutside() throws ParserConfigurationException, IOException {
+		if (regions == null)
+			return;
+		int slot = trajectories.slot(step);
+		int size = trajectories.size(slot);
+		if (inside.length < size)
+			inside = new boolean[Math.max(size, 2*inside.length)];
+		int written = 0, removed = 0;
+		double x0 = (scale-1) / 2.0 + offsetX, y0 = (scale-1) / 2.0 + offsetY;
+		for (int j = 0; j < size; j++) {
+			Trajectory tr = trajectories.get(slot, j);
+			int last = tr.size()-1;
+			double x = tr.getX(last)*scale + x0, y = tr.getY(last)*scale + y0;
+			inside[j] = false;
+			for (Region region : regions) {
+				if (region.contains(x, y)) {
+					inside[j] = true;
+					break;
+				}
+			}
+			if (!inside[j]) {
+				removed++;
+				if (finish(tr))
+					written++;
+			}
+		}
+		if (removed > 0) {
+			trajectories.retain(slot, inside);
+			//Keep the filters of the slot consecutive in the bank.
+			arrangeFilters();
+		}
+		if (metrics != null)
+			metrics.removed(written, removed - written);
+	}
+	
+	/**
+	 * Process the first frame: create a trajectory for each interest point.
+	 * @param first First frame of the video.
+	 */
+	private void start(final Frame first) {
+		//Creating structure for the point search, for the processed images. For each frame, it will
+		//  be populated with incoming points.
+		search = new PointSearch(first.gray.rows(), first.gray.cols());
+		scale = first.scale;
+		detector.setScale(scale);
+		regions = first.regions;
+		offsetX = first.offsetX;
+		offsetY = first.offsetY;
+		detector.setRegions(regions);
+		stepTimes[trajectories.slot(step)] = time;
+		pyramid.build(first.gray, pyramidBorder, pyramidLevels);
+		correct(first, positions);
+		advance();
+	}
+	
+	/**
+	 * Finish a processed frame: go to the next frame, and set the next frame to process.
+	 */
+	private void advance() {
+		nextFrame = time + skip;
 		time++;
+		step++;
+	}
+	
+	/**
+	 * Enable or disable the frame skipping. In this mode, only one of every few frames is
+	 * processed (the rest are only counted, without even the interest point detection), and the
+	 * number of frames between processed frames is adapted to the motion of the trajectories:
+	 * the largest one that keeps the motion between processed frames (90th percentile of the
+	 * trajectories) under the given distance. Trajectories keep the real time of the frames, and
+	 * their filters predict their positions across the skipped frames; occlusions are counted in
+	 * processed frames.
+	 * @param maxSkip Maximum number of frames between processed frames (1 to disable the mode).
+	 * @param motion Maximum motion between processed frames, in pixels.
+	 * @param interpolate true to add to the trajectories a node for each skipped frame,
+	 * interpolated between the nodes of the processed ones (also for the frames where the
+	 * trajectory was occluded). Otherwise, trajectories only have nodes for the processed frames.
+	 * The skipped frames can be discarded without decoding them (see getNextFrame); in this case,
+	 * the mode must not be changed while frames are discarded in advance.
+	 */
+	public void setFrameSkip(final int maxSkip, final double motion, final boolean interpolate) {
+		if (maxSkip < 1 || motion <= 0)
+			throw new IllegalArgumentException("Invalid frame skipping: " + maxSkip + ", " + motion);
+		this.maxSkip = maxSkip;
+		this.skipMotion = motion;
+		this.interpolate = interpolate;
+		skip = Math.min(skip, maxSkip);
+		nextFrame = Math.min(nextFrame, time - 1 + skip);
 	}
 	
-	public void close(final String videoFile) throws TransformerException, ParserConfigurationException {
-		//Save the remaining trajectories.
-		for (Trajectory tr : trajectories) {
-			if (tr.end()-tr.start()>MAX_OCCLUSIONS)
-				tr.writeXML(doc, xmlElement);
+	/**
+	 * Number of frames between the last processed frame and the next one.
+	 */
+	public int getSkip() {
+		return skip;
+	}
+	
+	/**
+	 * Time (index in the video) of the next frame to process. The frames before it are only
+	 * counted (see setFrameSkip), so the video reader can discard them without decoding them, and
+	 * count them with skipFrames. It can be called from any thread.
+	 */
+	public int getNextFrame() {
+		return nextFrame;
+	}
+	
+	/**
+	 * Count frames that are not given to the tracker because they are before the next frame to
+	 * process (see getNextFrame), as update does with their images.
+	 * @param frames Number of frames.
+	 * @throws IllegalArgumentException If some of the frames have to be processed.
+	 */
+	public void skipFrames(final int frames) {
+		if (frames < 0 || time + frames > nextFrame)
+			throw new IllegalArgumentException("Frames " + time + " to " + (time + frames - 1) + " can not be skipped: the next frame to process is " + nextFrame);
+		time += frames;
+	}
+	
+	/**
+	 * Adapt the number of frames between processed frames to the motion of the trajectories
+	 * found by the optical flow (see setFrameSkip). The number can drop to any smaller one (down
+	 * to 1) at any frame, so that a sudden motion is followed at once, but it is only doubled at
+	 * most at each frame, so that a frame with few trajectories does not cause a long jump.
+	 * @param positions: Point correspondences of the frame, after the optical flow.
+	 */
+	private void adaptSkip(final ArrayList<ArrayList<PointCorrespondence>> positions) {
+		if (maxSkip == 1)
+			return;
+		int n = 0;
+		for (ArrayList<PointCorrespondence> pt : positions) {
+			if (speeds.length < n+pt.size())
+				speeds = Arrays.copyOf(speeds, Math.max(n+pt.size(), 2*speeds.length));
+			for (PointCorrespondence p : pt) {
+				if (p.status == 0)
+					continue;
+				double dx = p.predicted.point.position.x - p.actual.point.position.x;
+				double dy = p.predicted.point.position.y - p.actual.point.position.y;
+				speeds[n++] = (float) (Math.sqrt(dx*dx+dy*dy) / (time - p.actual.time));
+			}
+		}
+		if (n == 0) {
+			skip = 1;
+			return;
+		}
+		Arrays.sort(speeds, 0, n);
+		float speed = speeds[(int) Math.ceil(0.9*n) - 1];
+		int next = speed*maxSkip <= skipMotion ? maxSkip : Math.max(1, (int) (skipMotion / speed));
+		skip = Math.min(next, 2*skip);
+	}
+	
+	/**
+	 * Save the remaining trajectories, and finish the streamed output given in the constructor.
+	 * @throws IOException
+	 * @throws IllegalStateException Without streamed output (see close(videoFile)).
+	 */
+	public void close() throws IOException {
+		if (doc != null)
+			throw new IllegalStateException("No streamed output: trajectories are in the XML document, use close(videoFile)");
+		for (Trajectory tr : trajectories.all()) {
+			if (isLongEnough(tr)) {
+				toFullResolution(tr);
+				sink.accept(tr);
+			}
+		}
+		sink.close();
+	}
+	
+	/**
+	 * Save the remaining trajectories, and write the XML document to a file.
+	 * @param videoFile Name of the XML file.
+	 * @throws TransformerException
+	 * @throws ParserConfigurationException
+	 * @throws IOException Error adding the trajectories to the document.
+	 * @throws IllegalStateException With streamed output (see close()).
+	 */
+	public void close(final String videoFile) throws TransformerException, ParserConfigurationException, IOException {
+		if (doc == null)
+			throw new IllegalStateException("Streamed output: trajectories are already written, use close()");
+		//Save the remaining trajectories, and wait for the background thread to add them to the
+		//  document.
+		for (Trajectory tr : trajectories.all()) {
+			if (isLongEnough(tr)) {
+				toFullResolution(tr);
+				sink.accept(tr);
+			}
 		}
+		sink.close();
 		//Create XML file before deleting the object.
 		TransformerFactory transformerFactory = TransformerFactory.newInstance();
 		Transformer transformer = transformerFactory.newTransformer();
@@ -107,17 +589,204 @@ public class Trajectories {
 	 * the point trajectories. The functión also create new trajectories, and delete finished ones.
 	 * @param image new image of the video sequence.
 	 * @throws ParserConfigurationException 
+	 * @throws IOException 
 	 */
-	public void update(final Mat image) throws ParserConfigurationException {
-
+	public void update(final Mat image) throws ParserConfigurationException, IOException {
+		if (time < nextFrame) {
+			//Frame skipping: the frame is only counted.
+			time++;
+			return;
+		}
+		frame.image = image;
+		long start = metrics != null || quality != null ? System.nanoTime() : 0;
+		if (quality != null)
+			applyQuality();
+		if (incremental)
+			updateIncremental(frame, true);
+		else if (quality != null && !quality.detect(step)) {
+			//Real-time mode, lowest quality: follow the trajectories with the optical flow alone.
+			updateIncremental(frame, false);
+		}
+		else {
+			//Detect interest points in the image.
+			detector.detect(frame);
+			if (metrics != null)
+				metrics.mark(TrackerMetrics.DETECT, start);
+			update(frame);
+		}
+		if (quality != null)
+			quality.frame(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Set the parameters of the current quality level of the real-time mode.
+	 */
+	private void applyQuality() {
+		detector.setMaxCorners(quality.getMaxCorners());
+		int window = quality.getWindow();
+		if (flowWindow.width != window)
+			flowWindow = new Size(window, window);
+		pyramidLevels = quality.getPyramidLevels();
+		if (flowTerm.maxCount != quality.getIterations())
+			flowTerm = new TermCriteria(TermCriteria.MAX_ITER|TermCriteria.EPS, quality.getIterations(), 0.1);
+		if (metrics != null)
+			metrics.quality(quality.getLevel());
+	}
+	
+	/**
+	 * Enable or disable the real-time mode for update(image). In this mode, the processing time of
+	 * each frame is given to the controller, which lowers the quality of the tracking when the
+	 * frames take longer than its budget, and raises it again when there is time to spare (see
+	 * QualityController). The current level is also given to the metrics (see setMetrics).
+	 * @param quality Quality control, or null to disable the mode and restore the default
+	 * parameters.
+	 */
+	public void setRealTime(final QualityController quality) {
+		this.quality = quality;
+		if (quality == null) {
+			detector.setMaxCorners(CornerDetector.MAX_CORNERS);
+			flowWindow = new Size(FLOW_WINDOW, FLOW_WINDOW);
+			pyramidLevels = PYRAMID_LEVELS;
+			flowTerm = new TermCriteria(TermCriteria.MAX_ITER|TermCriteria.EPS, FLOW_ITERATIONS, 0.1);
+			if (metrics != null)
+				metrics.quality(0);
+		}
+	}
+	
+	/**
+	 * Incremental version of update (see setIncremental). Trajectories are followed with the
+	 * optical flow, and interest points are only searched in the regions of the image not
+	 * covered by them, for new trajectories.
+	 * @param frame new frame of the video sequence, with its colour image.
+	 * @param detect false to follow the trajectories without searching interest points (and so
+	 * without new trajectories).
+	 * @throws ParserConfigurationException 
+	 * @throws IOException 
+	 */
+	private void updateIncremental(final Frame frame, final boolean detect) throws ParserConfigurationException, IOException {
+		long start = metrics != null ? System.nanoTime() : 0;
+		detector.toGray(frame);
+		long detection = metrics != null ? System.nanoTime() - start : 0;
+		//Predict and measure positions, as in update.
+		positions = predict();
+		long t = metrics != null ? System.nanoTime() : 0;
+		pyramid.build(frame.gray, pyramidBorder, pyramidLevels);
+		if (metrics != null)
+			t = metrics.mark(TrackerMetrics.PYRAMID, t);
+		measure(positions);
+		if (metrics != null) {
+			t = metrics.mark(TrackerMetrics.FLOW, t);
+			metrics.flow(flowFailures(positions));
+		}
+		adaptSkip(positions);
+		
+		//Update the trajectories found by the optical flow, and mark their regions in the mask.
+		int width = frame.gray.cols(), height = frame.gray.rows();
+		if (detect) {
+			mask.create(height, width, CvType.CV_8UC1);
+			mask.setTo(maskFree);
+			//With regions of interest, the detector restricts the mask to them.
+		}
+		int tracked = 0;
+		for (ArrayList<PointCorrespondence> pt : positions) {
+			for (PointCorrespondence p : pt) {
+				Point position = p.predicted.point.position;
+				if (p.status == 0 || position.x < 0 || position.y < 0 || position.x >= width || position.y >= height)
+					continue;
+				if (p.trajectory.updateNodes(p.predicted.point, time, interpolate)) {
+					if (detect)
+						Core.circle(mask, position, maskRadius, maskCovered, -1);
+					tracked++;
+				}
+			}
+		}
+		
+		reschedule(positions);
+		updateFilters();
+		finishOutside();
+		//Search interest points in the free regions, unless there are already enough trajectories,
+		//  and create new trajectories for them.
+		int created = 0;
+		if (detect && tracked < coverage*detector.getMaxCorners()) {
+			long corners = metrics != null ? System.nanoTime() : 0;
+			detector.findCorners(frame, mask);
+			if (metrics != null) {
+				detection += System.nanoTime() - corners;
+				t += System.nanoTime() - corners;
+			}
+			for (int i = 0; i < frame.cornerCount; i++)
+				create(new PointDetection(frame.corners[2*i], frame.corners[2*i+1], 1));
+			created = frame.cornerCount;
+		}
+		if (metrics != null) {
+			t = metrics.mark(TrackerMetrics.UPDATE, t);
+			metrics.stage(TrackerMetrics.DETECT).record(detection);
+			metrics.frame(created, tracked, size(positions) - tracked, trajectories.size());
+		}
+		updateBuffer();
+		if (metrics != null) {
+			metrics.mark(TrackerMetrics.BUFFER, t);
+			metrics.mark(TrackerMetrics.FRAME, start);
+		}
+		advance();
+	}
+	
+	/**
+	 * Enable or disable the incremental mode for update(image). In this mode, trajectories found
+	 * by the optical flow are updated with the optical flow position, instead of the position of
+	 * the closest interest point, and interest points are only searched far from them (through a
+	 * mask), so that new trajectories are only created for new features, and not for points
+	 * already tracked. If there are already enough trajectories, interest points are not searched.
+	 * Frames given with their interest points (update(frame)) are processed as usual.
+	 * @param incremental true for the incremental mode.
+	 * @param radius Radius of the region around each trajectory where interest points are not
+	 * searched.
+	 * @param coverage Interest points are not searched when the number of trajectories followed
+	 * in the frame is at least this fraction of the maximum number of interest points of the
+	 * detector.
+	 */
+	public void setIncremental(final boolean incremental, final int radius, final double coverage) {
+		this.incremental = incremental;
+		this.maskRadius = radius;
+		this.coverage = coverage;
+	}
+	
+	/**
+	 * Process a frame with its interest points already detected (see CornerDetector). The result
+	 * is the same than with update(image), but the detection can be done in advance in other
+	 * threads (see TrackingPipeline).
+	 * @param frame new frame of the video sequence.
+	 * @throws ParserConfigurationException 
+	 * @throws IOException 
+	 */
+	public void update(final Frame frame) throws ParserConfigurationException, IOException {
+		if (time < nextFrame) {
+			//Frame skipping: the frame is only counted.
+			time++;
+			return;
+		}
+		long start = metrics != null ? System.nanoTime() : 0;
 		//Predict positions for all active trajectories (and remove finished trajectories).
 		positions = predict();
+		//Compute the optical flow pyramid of the new image (only once, it is kept in the buffer).
+		long t = metrics != null ? System.nanoTime() : 0;
+		pyramid.build(frame.gray, pyramidBorder, pyramidLevels);
+		if (metrics != null)
+			t = metrics.mark(TrackerMetrics.PYRAMID, t);
 		//Measure actual trajectory positions in the new image, through opticl flow computation.
-		measure(image, positions);
+		measure(positions);
+		if (metrics != null) {
+			metrics.mark(TrackerMetrics.FLOW, t);
+			metrics.flow(flowFailures(positions));
+		}
+		adaptSkip(positions);
 		//Correct trajectory positions with interest point coordinates (and create new trajectories).
-		correct(image, positions);
+		correct(frame, positions);
+		finishOutside();
+		if (metrics != null)
+			metrics.mark(TrackerMetrics.FRAME, start);
 		//Update the object time
-		time++;
+		advance();
 	}
 	
 	/**
@@ -126,8 +795,9 @@ public class Trajectories {
 	 * @return: Vector with correspondences for all active trajectories for the current time, organized
 	 * by number of occlusions.
 	 * @throws ParserConfigurationException 
+	 * @throws IOException 
 	 */
-	private ArrayList<ArrayList<PointCorrespondence>> predict() throws ParserConfigurationException {
+	private ArrayList<ArrayList<PointCorrespondence>> predict() throws ParserConfigurationException, IOException {
 		//Return array. A list of MAX_OCCLUSIONS lists need to be created, each one for all the trajectories
 		//  with a given number of occlusions for the current time. For instance, the index 0 is for
 		//  trajectories which do not have any occlusions for this time.
@@ -136,78 +806,111 @@ public class Trajectories {
 		for (ArrayList<PointCorrespondence> p : positions)
 			p.clear();
 	
-		//Create a list iterator, since removal from the trajectories linked list need to be performed,
-		//  that is, the finished trajectories need to be deleted.
-		ListIterator<Trajectory> it = trajectories.listIterator();
-		while (it.hasNext()) {
-			Trajectory tr = it.next();
-			//Get last known point of the trajectory, and the prediction for it, for the current time.
-			PointCorrespondence point = tr.predict(time);
-			//Check if the trajectory is finished.
-			int index = time-point.actual.time-1;
-			if (index>=MAX_OCCLUSIONS) {
-				//Check if it is a valid trajectory, that is, is duration in larger than the minimum required.
-				if (tr.end()-tr.start()>MAX_OCCLUSIONS)
-					//If it is a valid trajectory, write it in the output file before remove it.
-					tr.writeXML(doc, xmlElement);
-				it.remove();
-			}
-			else
+		//The trajectories whose last node is MAX_OCCLUSIONS+1 processed frames old are finished.
+		//  They are in the slot of the current step, which is emptied for the trajectories of
+		//  this frame.
+		long t = metrics != null ? System.nanoTime() : 0;
+		stepTimes[trajectories.slot(step)] = time;
+		int finished = trajectories.slot(step);
+		int written = 0;
+		for (int j = 0; j < trajectories.size(finished); j++) {
+			if (finish(trajectories.get(finished, j)))
+				written++;
+		}
+		if (metrics != null) {
+			t = metrics.mark(TrackerMetrics.WRITE, t);
+			metrics.removed(written, trajectories.size(finished) - written);
+		}
+		trajectories.clear(finished);
+		
+		//The trajectories with i occlusions are the ones whose last node is at step-1-i.
+		for (int i = 0; i < MAX_OCCLUSIONS && step-1-i >= 0; i++) {
+			int slot = trajectories.slot(step-1-i);
+			int size = trajectories.size(slot);
+			//Predict the positions of all the trajectories of the slot, with their filters, which
+			//  are consecutive in the bank.
+			growFilterArrays(size);
+			filters.predict(filterStart[slot], size, time, filterX, filterY);
+			for (int j = 0; j < size; j++) {
+				//Get last known point of the trajectory, and the prediction for it, for the current time.
+				PointCorrespondence point = trajectories.get(slot, j).predict(time, filterX[j], filterY[j]);
 				//Add the point correspondence to the corresponding list.
-				positions.get(index).add(point);
+				positions.get(i).add(point);
+			}
 		}
+		if (metrics != null)
+			metrics.mark(TrackerMetrics.PREDICT, t);
 		return positions;
 	}
 	
+	/**
+	 * Number of point correspondences of all the lists.
+	 */
+	private static int size(final ArrayList<ArrayList<PointCorrespondence>> positions) {
+		int size = 0;
+		for (ArrayList<PointCorrespondence> pt : positions)
+			size += pt.size();
+		return size;
+	}
+	
+	/**
+	 * Number of point correspondences not found by the optical flow.
+	 */
+	private static int flowFailures(final ArrayList<ArrayList<PointCorrespondence>> positions) {
+		int failures = 0;
+		for (ArrayList<PointCorrespondence> pt : positions) {
+			for (PointCorrespondence p : pt) {
+				if (p.status == 0)
+					failures++;
+			}
+		}
+		return failures;
+	}
+	
 	/**
 	 * Get actual position for each trajectory from the optical flow computation between current
 	 * image, and previous images stored in the image buffer. The function update end coordinates for
 	 * each point, and remove the points for which the optical flow do not find correspondence.
-	 * @param image: Current image for optical flow computation.
+	 * The pyramid of the current image must be already computed.
 	 * @param positions: Initial guess for optical flow point correspondences. For each element, actual
 	 * is the actual interest point detected in previous image, and predicted is the prediction for that
 	 * point in the current image.
 	 */
-	private void measure(final Mat image, final ArrayList<ArrayList<PointCorrespondence>> positions) {
+	private void measure(final ArrayList<ArrayList<PointCorrespondence>> positions) {
+		//Create a task for each image in the buffer (o correspondingly, for all the trajectories
+		//  with a given number of occlusions). With an executor, large lists are split in chunks.
+		int tasks = 0;
 		for (int i = 0; i < MAX_OCCLUSIONS; i++) {
-			//For each image in the buffer (o correspondingly, for all the trajectories with a given 
-			//  number of occlusions), compute the optical flow.
 			ArrayList<PointCorrespondence> points = positions.get(i);
 			//If there is not any point, it is not needed to run the optical flow for this index.
-			if (points.size()==0) continue;
-			ArrayList<Point> st = new ArrayList<Point>(); 
-			ArrayList<Point> ed = new ArrayList<Point>(); 
-			for (PointCorrespondence p : points) {
-				st.add(p.actual.point.position);
-				ed.add(p.predicted.point.position);
+			int size = points.size();
+			int chunk = flowExecutor == null ? size : flowChunkSize;
+			for (int from = 0; from < size; from += chunk) {
+				if (tasks == flowTasks.size())
+					flowTasks.add(new FlowTask(this));
+				flowTasks.get(tasks++).set(getBufferImage(i+1), pyramid, points, from, Math.min(from+chunk, size));
 			}
-			//Parameter conversion for Optical Flow function.
-			MatOfPoint2f points1 = new MatOfPoint2f();
-			points1.fromList(st);
-			MatOfPoint2f points2 = new MatOfPoint2f();
-			points2.fromList(ed);
-			
-			MatOfByte status = new MatOfByte();
-			MatOfFloat err = new MatOfFloat();
-			
-			TermCriteria term = new TermCriteria(TermCriteria.MAX_ITER|TermCriteria.EPS, 10, 0.1);
-			Size winSize= new Size(9, 9);
-			//Optical flow computation.
-			Video.calcOpticalFlowPyrLK(getBufferImage(i+1), image, points1, points2, status, err, 
-					winSize, 3, term, Video.OPTFLOW_USE_INITIAL_FLOW, 0.1);
-
-			//Update points prediction with the values computed with the optical flow.
-			int n = 0;
-			byte[] val = status.toArray();
-			Point[] pt2 = points2.toArray();
-			for (PointCorrespondence p : points) {
-				//Update coordinates
-				p.predicted.point.position = pt2[n];
-				//Update status (0: point not found).
-				p.status = val[n];
-				n++;
+		}
+		
+		//Optical flow computation. Each task writes only its own points, and the optical flow of a
+		//  point does not depend on the rest, so the result is the same in parallel.
+		if (flowExecutor == null || tasks < 2) {
+			for (int i = 0; i < tasks; i++)
+				flowTasks.get(i).call();
+		}
+		else {
+			try {
+				for (Future<Void> f : flowExecutor.invokeAll(flowTasks.subList(0, tasks)))
+					f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
 			}
 		}
+		for (int i = 0; i < tasks; i++)
+			flowTasks.get(i).set(null, null, null, 0, 0);
 //		/////////////////////////////////////////////////////////////////
 //		Mat img = image.clone();
 //		Scalar color = new Scalar(0xFF, 0x00, 0x00);
@@ -221,19 +924,166 @@ public class Trajectories {
 
 	}
 	
+	/**
+	 * Make the working arrays for the filters large enough for the given number of filters.
+	 */
+	private void growFilterArrays(final int size) {
+		if (filterX.length < size) {
+			int length = Math.max(size, 2*filterX.length);
+			filterX = Arrays.copyOf(filterX, length);
+			filterY = Arrays.copyOf(filterY, length);
+		}
+	}
+	
+	/**
+	 * Arrange the filters in the bank in the order of the wheel, one slot after another, so that
+	 * the filters of each slot (an occlusion bucket in the next frames) are consecutive in the
+	 * bank, and are predicted and updated in loops over consecutive positions. The slot of the
+	 * current step goes last, so that the filters of new trajectories, added at the end of the
+	 * bank, are also at the end of its range. Trajectories are already sorted in the wheel, and
+	 * each slot takes its trajectories from few slots, so the bank is read in order, in few runs.
+	 * @return Number of filters.
+	 */
+	private int orderFilters() {
+		int total = trajectories.size();
+		if (filterOrder.length < total)
+			filterOrder = new int[Math.max(total, 2*filterOrder.length)];
+		int k = 0;
+		for (int i = 1; i <= MAX_OCCLUSIONS+1; i++) {
+			int slot = trajectories.slot(step+i);
+			filterStart[slot] = k;
+			for (int j = 0; j < trajectories.size(slot); j++) {
+				DynamicFilter filter = trajectories.get(slot, j).filter;
+				filterOrder[k] = filter.slot;
+				filter.slot = k++;
+			}
+		}
+		return k;
+	}
+	
+	/**
+	 * Arrange the filters in the bank in the order of the wheel (see orderFilters).
+	 */
+	private void arrangeFilters() {
+		filters.arrange(filterOrder, orderFilters());
+	}
+	
+	/**
+	 * Update the filters of the trajectories updated in the current frame (the ones of the slot of
+	 * the current step, before new trajectories are added), with the last node of each trajectory,
+	 * and set the current step as the one of their last node. The filters are arranged in the order of the wheel at the same time (see orderFilters), so
+	 * they are at the end of the bank, and the state of each filter is read and written once.
+	 */
+	private void updateFilters() {
+		int n = orderFilters();
+		int slot = trajectories.slot(step);
+		int size = trajectories.size(slot);
+		growFilterArrays(size);
+		for (int j = 0; j < size; j++) {
+			Trajectory tr = trajectories.get(slot, j);
+			tr.lastStep = step;
+			filterX[j] = tr.getX(tr.size()-1);
+			filterY[j] = tr.getY(tr.size()-1);
+		}
+		filters.arrange(filterOrder, n, filterStart[slot], filterX, filterY, time);
+	}
+	
+	/**
+	 * Move the trajectories updated in the current frame to the slot of the current step, keeping
+	 * them sorted by creation.
+	 * @param positions: Point correspondences of the frame.
+	 */
+	private void reschedule(final ArrayList<ArrayList<PointCorrespondence>> positions) {
+		trajectories.merge(trajectories.slot(step), positions, time);
+		for (int i = 0; i < MAX_OCCLUSIONS && step-1-i >= 0; i++) {
+			int slot = trajectories.slot(step-1-i);
+			trajectories.compact(slot, stepTimes[slot]);
+		}
+	}
+	
+	/**
+	 * Set the threads used for the correction step. The result of the tracking does not depend on
+	 * the number of threads, but it may differ from the one obtained without pool, since the
+	 * assignment of points to predictions is resolved by distance instead of by occlusions (see
+	 * PointSearch.matchAll).
+	 * @param pool Threads for the correction, or null to run it in the calling thread.
+	 */
+	public void setPool(final ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Parallel version of the trajectory update of the correction step. Points are assigned by
+	 * the parallel search (matchAll with the pool); then, the trajectories of the assigned predictions are
+	 * updated by the threads of the pool (each trajectory has its own nodes, so updates are
+	 * independent; the filters are updated afterwards, see updateFilters), and the points of the
+	 * successful updates are marked as used.
+	 * @param positions: Point correspondences obtained with optical flow algorithm.
+	 * @param assignment: Interest point of each correspondence (see PointSearch.matchAll).
+	 */
+	private void correctParallel(final ArrayList<ArrayList<PointCorrespondence>> positions, final int[] assignment) {
+		int size = size(positions);
+		if (matched.length < size) {
+			matched = new PointCorrespondence[size];
+			matchedPoints = new PointData[size];
+			updated = new boolean[size];
+		}
+		int n = 0, q = 0;
+		for (ArrayList<PointCorrespondence> pt : positions) {
+			for (PointCorrespondence p : pt) {
+				int index = assignment[q++];
+				if (index < 0) continue;
+				matched[n] = p;
+				matchedPoints[n] = points.get(index);
+				n++;
+			}
+		}
+		pool.invoke(new UpdateTask(this, 0, n));
+		for (int i = 0; i < n; i++) {
+			if (updated[i])
+				matchedPoints[i].used = true;
+			matched[i] = null;
+			matchedPoints[i] = null;
+		}
+	}
+	
+	/**
+	 * Parallel task for the update of the nodes of the matched trajectories. Ranges larger than
+	 * UPDATE_TASK_SIZE are split in two halves.
+	 */
+	private static class UpdateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Trajectories tracker;
+		private final int from, to;
+		
+		UpdateTask(final Trajectories tracker, final int from, final int to) {
+			this.tracker = tracker;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to-from <= UPDATE_TASK_SIZE) {
+				for (int i = from; i < to; i++)
+					tracker.updated[i] = tracker.matched[i].trajectory.updateNodes(tracker.matchedPoints[i].point, tracker.time, tracker.interpolate);
+				return;
+			}
+			int middle = (from+to) >>> 1;
+			invokeAll(new UpdateTask(tracker, from, middle), new UpdateTask(tracker, middle, to));
+		}
+	}
+	
 	/**
 	 * Correct coordinates for end positions with actual interest point coordinates, and update successful
 	 * trajectories, adding the new node.
-	 * @param image: Current image for interest point computation.
+	 * @param frame: Current frame, with its interest points.
 	 * @param positions: Point correspondences obtained with optical flow algorithm.
 	 */
-	private void correct(final Mat image, final ArrayList<ArrayList<PointCorrespondence>> positions) {
-		//Detect interest points in the image.
-		MatOfPoint crn = new MatOfPoint();
-		Mat gray = new Mat();
-		Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
-		Imgproc.goodFeaturesToTrack(gray, crn, 200, 0.01, 4);
-		Point[] corners = crn.toArray();
+	private void correct(final Frame frame, final ArrayList<ArrayList<PointCorrespondence>> positions) {
+		long t = metrics != null ? System.nanoTime() : 0;
+		int size = frame.cornerCount;
+		int[] corners = frame.corners;
 		
 //		/////////////////////////////////////////////////////////////////
 //		Mat img = image.clone();
@@ -245,63 +1095,261 @@ public class Trajectories {
 //		/////////////////////////////////////////////////////////////////
 		
 		
-		//Create the list of detection points for the point search object.
-		int size = crn.rows();
-		ArrayList<PointData> points = new ArrayList<PointData>(size);
-		for (Point p : corners) {
-			points.add(new PointData(new PointDetection( p, 1), false));
+		//Create the list of detection points for the point search object, reusing the point
+		//  objects of previous frames.
+		points.clear();
+		for (int i = 0; i < size; i++) {
+			if (i == pointPool.size())
+				pointPool.add(new PointData(new PointDetection(0, 0, 1), false));
+			PointData p = pointPool.get(i);
+			p.point.position.x = corners[2*i];
+			p.point.position.y = corners[2*i+1];
+			p.point.octave = 1;
+			p.used = false;
+			points.add(p);
 		}
 		//Create the point search object, to optimize point correspondence search.
 		search.Init(points);
 		
 		//For each trajectory prediction, find its corresponding interest point in the current
-		//  image (if it exists).
-		for (ArrayList<PointCorrespondence> pt : positions) {
-			for (PointCorrespondence p : pt) {
-				//If the point has not found its corresponding point in the optical flow step, do not
-				//  update its trajectory.
-				if (p.status==0) continue;
-				PointData newPoint = search.FindPoint(p.predicted.point); 
-				if (newPoint != null) {
-					//Update the trajectory last known point with the coordinates of the closest
-					//  interest point.
-					//NOTE: It is preferable to change optical flow coordinates by interest point
-					//  coordinates, since the last are better tracked.
-					if (p.trajectory.update(newPoint.point, time))
-						newPoint.used = true;
+		//  image (if it exists). All the predictions are searched at once; predictions which
+		//  have not found its corresponding point in the optical flow step are not searched.
+		int[] assignment = pool != null ? search.matchAll(positions, pool) : search.matchAll(positions);
+		if (metrics != null)
+			t = metrics.mark(TrackerMetrics.MATCH, t);
+		if (pool != null)
+			correctParallel(positions, assignment);
+		else {
+			int q = 0;
+			for (ArrayList<PointCorrespondence> pt : positions) {
+				for (PointCorrespondence p : pt) {
+					int index = assignment[q++];
+					if (index >= 0)
+						updateNodes(p, points.get(index));
 				}
 			}
 		}
 		
+		//Move the updated trajectories to the current slot, and update their filters, all together.
+		reschedule(positions);
+		updateFilters();
 		//For the points not used, create new trajectories.
+		int created = 0;
 		for (PointData p : points){
 			if (!p.used) {
-				trajectories.add(new Trajectory(p.point, time));
+				create(p.point);
+				created++;
 			}
 		}
+		if (metrics != null) {
+			t = metrics.mark(TrackerMetrics.UPDATE, t);
+			int matched = size - created;
+			metrics.frame(created, matched, size(positions) - matched, trajectories.size());
+		}
 		//Store the new image in the image buffer.
-		updateBuffer(image);
+		updateBuffer();
+		if (metrics != null)
+			metrics.mark(TrackerMetrics.BUFFER, t);
 
 	}
+	/**
+	 * Update the nodes of the trajectory of a prediction with its interest point, and mark the
+	 * point as used. The filter is not updated (see updateFilters).
+	 * @param p Prediction.
+	 * @param newPoint Interest point found for the prediction.
+	 */
+	private void updateNodes(final PointCorrespondence p, final PointData newPoint) {
+		//Update the trajectory last known point with the coordinates of the closest interest point.
+		//NOTE: It is preferable to change optical flow coordinates by interest point coordinates,
+		//  since the last are better tracked.
+		if (p.trajectory.updateNodes(newPoint.point, time, interpolate))
+			newPoint.used = true;
+	}
+	
 	/**
 	 * The buffer is a circular buffer, and when a new image comes to the object, this image
 	 * substitute the oldest one. This way, the buffer keeps a copy of the last five images of the
-	 * video.
-	 * @param image: new image
+	 * video (their optical flow pyramids, see pyramid).
 	 */
-	private void updateBuffer(final Mat image) {
-		//Substitute the oldest image with the new one.
-		buffer[time % MAX_OCCLUSIONS] = image.clone();
+	private void updateBuffer() {
+		//Substitute the oldest image with the new one. The pyramid of the oldest image is kept for
+		//  the next frame.
+		int index = step % MAX_OCCLUSIONS;
+		ImagePyramid oldest = buffer[index];
+		buffer[index] = pyramid;
+		pyramid = oldest;
 	}
 	
-	private Mat getBufferImage(final int index) {
-		int diff = (time-index) % MAX_OCCLUSIONS;
+	private ImagePyramid getBufferImage(final int index) {
+		int diff = (step-index) % MAX_OCCLUSIONS;
 		return buffer[diff];
 	}
 	
+	/**
+	 * Set the instrumentation of the tracker: time of each stage of the frames, and counters of
+	 * trajectories and points (see TrackerMetrics).
+	 * @param metrics Metrics where the measures are added, or null to measure nothing.
+	 */
+	public void setMetrics(final TrackerMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Instrumentation of the tracker (see setMetrics).
+	 * @return Metrics, or null.
+	 */
+	public TrackerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Set the interest point detection used for the frames given as images (update(image)). Its
+	 * scale and regions of interest are set to the ones of the tracker.
+	 * @param detector Interest point detection (for instance, a TiledCornerDetector).
+	 */
+	public void setDetector(final CornerDetector detector) {
+		detector.setScale(scale);
+		detector.setRegions(regions);
+		this.detector = detector;
+	}
+	
+	/**
+	 * Set the threads used for the optical flow computation. The result of the tracking does not
+	 * change.
+	 * @param executor Threads for the optical flow, or null to run it in the calling thread.
+	 * @param chunkSize Maximum number of points for each task. Lists of trajectories with the same
+	 * number of occlusions are split in chunks of this size, so that the largest one (the list of
+	 * trajectories without occlusions) is also computed in parallel.
+	 */
+	public void setFlowExecutor(final ExecutorService executor, final int chunkSize) {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		flowExecutor = executor;
+		flowChunkSize = chunkSize;
+	}
+	
+	/**
+	 * Optical flow for a range of point correspondences, between a buffer image and the current
+	 * image. Each task has its own working data (kept between frames, so that the processing of
+	 * each frame does not create new objects once they have grown to the required size), so
+	 * several tasks can run at the same time.
+	 */
+	private static class FlowTask implements Callable<Void> {
+		private final Trajectories tracker;
+		private ImagePyramid previous, current;
+		private ArrayList<PointCorrespondence> points;
+		private int from, to;
+		private MatOfPoint2f flowStart = new MatOfPoint2f();
+		private MatOfPoint2f flowEnd = new MatOfPoint2f();
+		private MatOfByte flowStatus = new MatOfByte();
+		private MatOfFloat flowError = new MatOfFloat();
+		private float[] flowCoordinates = new float[0];
+		private float[] flowOrigin = new float[0];
+		private byte[] flowFound = new byte[0];
+		
+		FlowTask(final Trajectories tracker) {
+			this.tracker = tracker;
+		}
+		
+		/**
+		 * Set the data for the next computation.
+		 * @param previous: Pyramid of the buffer image.
+		 * @param current: Pyramid of the current image.
+		 * @param points: Point correspondences. For each element, actual is the actual interest
+		 * point detected in the buffer image, and predicted is the initial guess, which is updated.
+		 * @param from: First correspondence of the range.
+		 * @param to: Last correspondence of the range (not included).
+		 */
+		void set(final ImagePyramid previous, final ImagePyramid current,
+				final ArrayList<PointCorrespondence> points, final int from, final int to) {
+			this.previous = previous;
+			this.current = current;
+			this.points = points;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		public Void call() {
+			int size = to-from;
+			if (flowCoordinates.length < 2*size) {
+				flowCoordinates = new float[4*size];
+				flowOrigin = new float[4*size];
+				flowFound = new byte[2*size];
+			}
+			//Parameter conversion for Optical Flow function. Point lists are copied into the
+			//  coordinates arrays, which are scaled for each level.
+			int n = 0;
+			for (int i = from; i < to; i++) {
+				PointCorrespondence p = points.get(i);
+				flowOrigin[n] = (float) p.actual.point.position.x;
+				flowCoordinates[n++] = (float) p.predicted.point.position.x;
+				flowOrigin[n] = (float) p.actual.point.position.y;
+				flowCoordinates[n++] = (float) p.predicted.point.position.y;
+			}
+			
+			//Optical flow computation, with the stored pyramids.
+			pyramidalFlow(size);
+			
+			//Update points prediction with the values computed with the optical flow.
+			n = 0;
+			for (int i = from; i < to; i++) {
+				PointCorrespondence p = points.get(i);
+				//Update coordinates
+				p.predicted.point.position.x = flowCoordinates[2*n];
+				p.predicted.point.position.y = flowCoordinates[2*n+1];
+				//Update status (0: point not found).
+				p.status = flowFound[n];
+				n++;
+			}
+			return null;
+		}
+		
+		/**
+		 * Pyramidal Lucas-Kanade optical flow over precomputed pyramids. The Java interface of
+		 * calcOpticalFlowPyrLK does not accept pyramids, so the flow is computed level by level,
+		 * from the coarsest one, with a single level call for each: the result of each level,
+		 * scaled, is the initial guess for the next one, as calcOpticalFlowPyrLK does internally.
+		 * As there, only the status of the finest level is taken into account (points lost in a
+		 * coarse level keep their guess).
+		 * @param size: Number of points. Start points are read from flowOrigin, and initial guesses
+		 * from flowCoordinates, which is updated with the result. Status is stored in flowFound.
+		 */
+		private void pyramidalFlow(final int size) {
+			int levels = Math.min(previous.size(), current.size());
+			for (int level = levels-1; level >= 0; level--) {
+				float scale = 1.0f/(1 << level);
+				//Initial guess: the prediction for the coarsest level, the result of the previous
+				//  level for the rest.
+				float guessScale = level == levels-1 ? scale : 2.0f;
+				for (int n = 0; n < 2*size; n++) {
+					flowCoordinates[n] *= guessScale;
+				}
+				flowEnd.alloc(size);
+				flowEnd.put(0, 0, flowCoordinates);
+				for (int n = 0; n < 2*size; n++) {
+					flowCoordinates[n] = flowOrigin[n]*scale;
+				}
+				flowStart.alloc(size);
+				flowStart.put(0, 0, flowCoordinates);
+				Video.calcOpticalFlowPyrLK(previous.get(level), current.get(level), flowStart, flowEnd, flowStatus,
+						flowError, tracker.flowWindow, 0, tracker.flowTerm, Video.OPTFLOW_USE_INITIAL_FLOW, 0.1);
+				flowEnd.get(0, 0, flowCoordinates);
+			}
+			flowStatus.get(0, 0, flowFound);
+		}
+	}
+	
+	/**
+	 * Number of active trajectories (trajectories not finished yet).
+	 */
+	public int size() {
+		return trajectories.size();
+	}
+	
 	public String toString() {
 		String str="";
-		for (Trajectory tr : trajectories) {
+		for (Trajectory tr : trajectories.all()) {
 			str = str + tr + "\n";
 		}
 		return str;
@@ -309,7 +1357,7 @@ public class Trajectories {
 	
 	public void DrawTrajectories(final Mat image) {
 		Scalar color = new Scalar(0, 0, 0);
-		for (Trajectory tr : trajectories) {
+		for (Trajectory tr : trajectories.all()) {
 			tr.drawPath(image, color);
 		}
 	}
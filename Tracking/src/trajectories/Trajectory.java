@@ -1,14 +1,18 @@
 package trajectories;
 
-import java.util.ArrayList;
-
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.w3c.dom.*;
 import javax.xml.parsers.*;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
  * @author pedro
@@ -18,9 +22,18 @@ import javax.xml.parsers.*;
 public class Trajectory {
 
 	/**
-	 * List of nodes which composes the trajectory path of a given point
+	 * Nodes which composes the trajectory path of a given point. Nodes are not stored as objects,
+	 * but as arrays of its values (time, coordinates and octave), so that each node only needs
+	 * a few bytes. Arrays grow as needed, and only the first size elements are valid.
+	 */
+	private int[] times;
+	private double[] xs;
+	private double[] ys;
+	private byte[] octaves;
+	/**
+	 * Number of nodes of the trajectory.
 	 */
-	private ArrayList<TrajectoryNode> nodes;
+	private int size;
 	/**
 	 * Number of times the point of the trajectory has not been detected.
 	 * When a trajectory reaches a given number of occlusions, the trajectory 
@@ -33,30 +46,74 @@ public class Trajectory {
 	 */
 	DynamicFilter filter;
 	
+	/**
+	 * Processed frames (steps, see Trajectories) of the first and last nodes, set by the tracker,
+	 * so that the length of the trajectory is measured in processed frames when frames are skipped.
+	 */
+	int firstStep, lastStep;
+	
+	/**
+	 * Point correspondence returned by predict. It is created with the first prediction, and
+	 * reused for the next ones, so that predictions do not create new objects.
+	 */
+	private PointCorrespondence correspondence;
+	
 	/**
 	 * Unique ID for the trajectory
 	 */
 	private int ID;
 	
 	/**
-	 * Static variable to ensure a unique ID for each trajectory. 
+	 * Static variable to ensure a unique ID for each trajectory created without ID. It is atomic,
+	 * so that trajectories can be created in several threads.
 	 */
-	private static int TrajectoryID = 0; 
+	private static final AtomicInteger TrajectoryID = new AtomicInteger(); 
+	
+	/**
+	 * Resolution of the coordinates in the binary format: positions are rounded to integers, in
+	 * 1/BINARY_SCALE pixel units, so fractional positions lose precision (at most 1/512 pixel).
+	 */
+	static final double BINARY_SCALE = 256;
 	/**
 	 * Constructor: Build a trajectory with the first node.
 	 * @param point First position of the trajectory.
 	 * @param time Current time for the first node.
 	 */
 	public Trajectory(final PointDetection point, final int time) {
-		//Add first node of the trajectory
-		TrajectoryNode node = new TrajectoryNode(point, time);
-		nodes = new ArrayList<TrajectoryNode>();
-		nodes.add(node);
 		//Assign an unique ID for each trajectory
-		this.ID = TrajectoryID;
-		TrajectoryID++;
+		this(point, time, TrajectoryID.getAndIncrement());
+	}
+	
+	/**
+	 * Constructor: Build a trajectory with the first node, and the given ID. IDs are given by the
+	 * tracker (see Trajectories), so that they are unique for each video, or read from file.
+	 * @param point First position of the trajectory.
+	 * @param time Current time for the first node.
+	 * @param ID Identifier of the trajectory.
+	 */
+	public Trajectory(final PointDetection point, final int time, final int ID) {
+		this(point, time, ID, null);
+	}
+	
+	/**
+	 * Constructor: Build a trajectory with the first node, and the given ID, with its filter in
+	 * the given bank (see FilterBank).
+	 * @param point First position of the trajectory.
+	 * @param time Current time for the first node.
+	 * @param ID Identifier of the trajectory.
+	 * @param bank Bank for the filter of the trajectory, or null for a filter of its own.
+	 */
+	public Trajectory(final PointDetection point, final int time, final int ID, final FilterBank bank) {
+		//Add first node of the trajectory
+		times = new int[4];
+		xs = new double[4];
+		ys = new double[4];
+		octaves = new byte[4];
+		size = 0;
+		add(point, time);
+		this.ID = ID;
 		//Create dynamic filter.
-		filter = new DynamicFilter(point.position, time);
+		filter = bank == null ? new DynamicFilter(point.position, time) : new DynamicFilter(bank, point.position, time);
 	}
 	
 	public void writeXML(final Document doc, final Element element) throws ParserConfigurationException{
@@ -71,45 +128,61 @@ public class Trajectory {
 		Element trajectoryNodeElement = doc.createElement("TrajectoryNodes");
 		trajectoryElement.appendChild(trajectoryNodeElement);
 		
-		//Write all the nodes of the trajectory
-		for (TrajectoryNode node : nodes) {
+		//Write all the nodes of the trajectory, through a single node object.
+		TrajectoryNode node = new TrajectoryNode(new PointDetection(0, 0, 0), 0);
+		for (int i = 0; i < size; i++) {
 			//Create Node element and call next function
-			node.writeXML(doc, trajectoryNodeElement);			
+			getNode(i, node).writeXML(doc, trajectoryNodeElement);			
 		}
 	}
 
+	/**
+	 * Write the trajectory into a streamed XML output, with the same structure than the DOM
+	 * version of this function. Nothing is kept in memory after the call.
+	 * @param writer XML stream, placed inside the VideoAnnotation element.
+	 * @throws XMLStreamException
+	 */
+	public void writeXML(final XMLStreamWriter writer) throws XMLStreamException {
+		//Write trajectory element, with its ID.
+		writer.writeStartElement("Trajectory");
+		writer.writeAttribute("ID", Integer.toString(ID));
+		writer.writeStartElement("TrajectoryNodes");
+		//Write all the nodes of the trajectory, through a single node object.
+		TrajectoryNode node = new TrajectoryNode(new PointDetection(0, 0, 0), 0);
+		for (int i = 0; i < size; i++) {
+			getNode(i, node).writeXML(writer);
+		}
+		//Close TrajectoryNodes and Trajectory elements.
+		writer.writeEndElement();
+		writer.writeEndElement();
+	}
+
 	public static Trajectory ReadXMLTrajectory(final Node trayectory){
 		
 			if (trayectory.getNodeType() == Node.ELEMENT_NODE) {
 				Element eElement = (Element) trayectory;
-				System.out.println("Trajectory ID : " + eElement.getAttribute("ID"));
 				
 				//Get all TrajectoryNodes
 				NodeList listTrajectoryNodes = eElement.getElementsByTagName("TrajectoryNodes");
-				System.out.println("=======");
 				//Inside each TrayectoryNode
 					//Getting the "j" TrajectoryNode of the 'i' Trajectory
 					Node trajectoryNode = listTrajectoryNodes.item(0);
-					System.out.println("");
 	
 					if (trajectoryNode.getNodeType() == Node.ELEMENT_NODE) {
 						Element eElement2 = (Element) trajectoryNode;
 						Trajectory trj = null;
 						NodeList listNodes = eElement2.getElementsByTagName("Node");
-						System.out.println("===");
 						//Inside each Node
 						for (int k = 0; k < listNodes.getLength(); k++){
 							//Getting the 'k' node
 							Node node = listNodes.item(k);
-							System.out.println("");
 							//Create a new trajectory with the first point
 							TrajectoryNode aux = new TrajectoryNode(TrajectoryNode.ReadXMLTrajectoryNode(node));
 							if (trj == null){
-								trj = new Trajectory (aux.point, aux.time);
-								trj.ID = Integer.parseInt(eElement.getAttribute("ID"));
+								trj = new Trajectory (aux.point, aux.time, Integer.parseInt(eElement.getAttribute("ID")));
 							}
 							else
-								trj.update(aux.point, aux.time);							
+								trj.append(aux.point, aux.time);							
 						}
 						return trj;
 					}		
@@ -117,6 +190,102 @@ public class Trajectory {
 			return null;
 			}
 
+	/**
+	 * Read a trajectory from a streamed XML input. The reader must be placed at the start of the
+	 * Trajectory element, and it is left at the end of the element. As in the DOM version, the
+	 * trajectory is rebuilt by appending each node read.
+	 * @param reader XML stream.
+	 * @return The trajectory read, or null if it has no nodes.
+	 * @throws XMLStreamException
+	 */
+	public static Trajectory ReadXMLTrajectory(final XMLStreamReader reader) throws XMLStreamException {
+		int ID = Integer.parseInt(reader.getAttributeValue(null, "ID"));
+		Trajectory trj = null;
+		//Read all the nodes, until the end of the Trajectory element.
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if (reader.getLocalName().equals("Node")) {
+					//The node is read up to its end element, so depth does not change.
+					TrajectoryNode node = TrajectoryNode.ReadXMLTrajectoryNode(reader);
+					if (trj == null) {
+						trj = new Trajectory(node.point, node.time, ID);
+					}
+					else
+						trj.append(node.point, node.time);
+				}
+				else
+					depth++;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+		return trj;
+	}
+
+
+	/**
+	 * Maximum size of the binary record of the trajectory (see writeBinary).
+	 * @return size in bytes.
+	 */
+	int maxBinarySize() {
+		return (2 + 4*size)*VarInt.MAX_BYTES;
+	}
+	
+	/**
+	 * Write the trajectory in binary format: ID and number of nodes, followed by the nodes. For each
+	 * node, time, coordinates and octave are stored as the difference with the previous node, in
+	 * variable length integers, so that most nodes only need a few bytes. Coordinates are rounded
+	 * to 1/BINARY_SCALE pixel.
+	 * @param buffer Output buffer, with at least maxBinarySize() bytes remaining.
+	 */
+	void writeBinary(final ByteBuffer buffer) {
+		VarInt.put(buffer, ID);
+		VarInt.put(buffer, size);
+		int time = 0, octave = 0;
+		long x = 0, y = 0;
+		for (int i = 0; i < size; i++) {
+			long nx = Math.round(xs[i]*BINARY_SCALE);
+			long ny = Math.round(ys[i]*BINARY_SCALE);
+			//Node times always increase, so the difference is not signed.
+			VarInt.put(buffer, times[i]-time);
+			VarInt.putSigned(buffer, nx-x);
+			VarInt.putSigned(buffer, ny-y);
+			VarInt.putSigned(buffer, octaves[i]-octave);
+			time = times[i];
+			x = nx;
+			y = ny;
+			octave = octaves[i];
+		}
+	}
+	
+	/**
+	 * Read a trajectory written with writeBinary. As in the XML version, the trajectory is rebuilt
+	 * by appending each node read.
+	 * @param buffer Input buffer, placed at the start of the trajectory record.
+	 * @return The trajectory read, or null if it has no nodes.
+	 */
+	static Trajectory ReadBinaryTrajectory(final ByteBuffer buffer) {
+		int ID = (int) VarInt.get(buffer);
+		int size = (int) VarInt.get(buffer);
+		Trajectory trj = null;
+		int time = 0, octave = 0;
+		long x = 0, y = 0;
+		for (int i = 0; i < size; i++) {
+			time += (int) VarInt.get(buffer);
+			x += VarInt.getSigned(buffer);
+			y += VarInt.getSigned(buffer);
+			octave += (int) VarInt.getSigned(buffer);
+			PointDetection point = new PointDetection(x/BINARY_SCALE, y/BINARY_SCALE, octave);
+			if (trj == null) {
+				trj = new Trajectory(point, time, ID);
+			}
+			else
+				trj.append(point, time);
+		}
+		return trj;
+	}
 
 	/**
 	 * Update trajectory with a new node. The function checks if the node is static.
@@ -126,58 +295,222 @@ public class Trajectory {
 	 * @param time Current time for the new node.
 	 */
 	public boolean update(final PointDetection point, final int time) {
+		return update(point, time, false);
+	}
+	
+	/**
+	 * Update trajectory with a new node, as in update(point, time), optionally adding the nodes
+	 * of the frames between the last node and the new one (see updateNodes).
+	 * @param point New position of the trajectory.
+	 * @param time Current time for the new node.
+	 * @param interpolate true to add the interpolated nodes.
+	 */
+	boolean update(final PointDetection point, final int time, final boolean interpolate) {
+		if (!updateNodes(point, time, interpolate))
+			return false;
+		filter.update(point.position, time);
+		return true;
+	}
+	
+	/**
+	 * Update the nodes of the trajectory with a new node, as in update, but not its filter, which
+	 * must be updated afterwards (for instance, with the filters of other trajectories, see
+	 * FilterBank).
+	 * @param point New position of the trajectory.
+	 * @param time Current time for the new node.
+	 * @return true if the node is valid, and the filter must be updated.
+	 */
+	boolean updateNodes(final PointDetection point, final int time) {
+		return updateNodes(point, time, false);
+	}
+	
+	/**
+	 * Update the nodes of the trajectory with a new node, as in updateNodes(point, time). If
+	 * the node is added (it is not static), and there are frames between the last node and the
+	 * new one (frames not processed, or occlusions), a node is also added for each of them,
+	 * interpolated linearly between both.
+	 * @param point New position of the trajectory.
+	 * @param time Current time for the new node.
+	 * @param interpolate true to add the interpolated nodes.
+	 * @return true if the node is valid, and the filter must be updated.
+	 */
+	boolean updateNodes(final PointDetection point, final int time, final boolean interpolate) {
 		if (!this.CheckGeometricConstrains(point.position, time))
 			return false;
 		
-		TrajectoryNode node = new TrajectoryNode(point, time);
-		TrajectoryNode end = nodes.get(nodes.size()-1);
-		
-		filter.update(point.position, time);
 		//If the trajectory only has one node, always add int.
-		if (nodes.size()==1) {
-			nodes.add(node);
+		if (size==1) {
+			if (interpolate)
+				interpolate(point, time);
+			add(point, time);
 			return true;
 		}
 
 		//Check if the point is static. In this case, do not increment the size of 
 		//  the list of nodes
 		//Get last node of the trajectory.
-		//TODO: Pedro: Check if it is enough changing end values (if end is a reference to the element)
-		if (end.point.PointDistance2(point)<2)
+		int end = size-1;
+		double dx = xs[end]-point.position.x;
+		double dy = ys[end]-point.position.y;
+		if (dx*dx+dy*dy<2)
 			//In this case, replace new node for the last one.
-			nodes.set(nodes.size()-1, node);
-		else
+			set(end, point, time);
+		else {
 			//Otherwise, add the new node to the trajectory.
-			nodes.add(node);
+			if (interpolate)
+				interpolate(point, time);
+			add(point, time);
+		}
 		
 		return true;
 	}
 	
+	/**
+	 * Add a node for each time between the last node and the given one, interpolated linearly
+	 * between the last node and the given position.
+	 * @param point Position of the next node.
+	 * @param time Time of the next node.
+	 */
+	private void interpolate(final PointDetection point, final int time) {
+		int last = size-1;
+		int t0 = times[last];
+		double x0 = xs[last], y0 = ys[last];
+		for (int t = t0+1; t < time; t++) {
+			double f = (double) (t-t0) / (time-t0);
+			add(t, x0 + f*(point.position.x-x0), y0 + f*(point.position.y-y0), (byte) point.octave);
+		}
+	}
+	
+	/**
+	 * Add a node at the end of the trajectory, growing the node arrays if needed.
+	 * @param point Position of the node.
+	 * @param time Time of the node.
+	 */
+	private void add(final PointDetection point, final int time) {
+		add(time, point.position.x, point.position.y, (byte) point.octave);
+	}
+	
+	/**
+	 * Add a node at the end of the trajectory, from its values.
+	 */
+	private void add(final int time, final double x, final double y, final byte octave) {
+		if (size==times.length) {
+			int length = 2*size;
+			times = Arrays.copyOf(times, length);
+			xs = Arrays.copyOf(xs, length);
+			ys = Arrays.copyOf(ys, length);
+			octaves = Arrays.copyOf(octaves, length);
+		}
+		times[size] = time;
+		xs[size] = x;
+		ys[size] = y;
+		octaves[size] = octave;
+		size++;
+	}
+	
+	/**
+	 * Set the values of the given node.
+	 * @param i Index of the node.
+	 * @param point Position of the node.
+	 * @param time Time of the node.
+	 */
+	private void set(final int i, final PointDetection point, final int time) {
+		times[i] = time;
+		xs[i] = point.position.x;
+		ys[i] = point.position.y;
+		octaves[i] = (byte) point.octave;
+	}
+	
+	/**
+	 * Map the coordinates of the nodes from a part of the image, reduced by the given scale, to
+	 * the full resolution image (pixel centres: x*scale + (scale-1)/2 + offset), and set their
+	 * octave.
+	 * @param scale Reduction of the image of the trajectory.
+	 * @param octave Octave of the nodes.
+	 * @param offsetX Position of the part of the image, in the full resolution image.
+	 * @param offsetY Position of the part of the image, in the full resolution image.
+	 */
+	void rescale(final int scale, final int octave, final int offsetX, final int offsetY) {
+		double x0 = (scale-1) / 2.0 + offsetX, y0 = (scale-1) / 2.0 + offsetY;
+		for (int i = 0; i < size; i++) {
+			xs[i] = xs[i]*scale + x0;
+			ys[i] = ys[i]*scale + y0;
+			octaves[i] = (byte) octave;
+		}
+	}
+	
+	/**
+	 * Add a node read from a file at the end of the trajectory. Unlike update, the node is never
+	 * merged with the previous one, since stored trajectories were already simplified when they
+	 * were built, and merging them again would change them.
+	 * @param point Position of the node.
+	 * @param time Time of the node.
+	 */
+	void append(final PointDetection point, final int time) {
+		filter.update(point.position, time);
+		add(point, time);
+	}
+	
 	/**
 	 * Generates a point correspondence, where start is the last known
 	 * position of the trajectory, and end is the prediction for the trajectory
-	 * position at the time given.
+	 * position at the time given. The same correspondence object is returned
+	 * in every call, so it is only valid until the next prediction.
 	 * @param time Prediction is computed for the given time.
 	 * @return Point correspondence.
 	 */
 	public PointCorrespondence predict(final int time) {
-		//Get last node of the trajectory.
-		TrajectoryNode start = nodes.get(nodes.size()-1);
+		if (correspondence == null)
+			correspondence = new PointCorrespondence(getNode(size-1), getNode(size-1), this);
 		//Predict new position for the trajectory.
-		PointDetection point = new PointDetection(filter.predict(time), start.point.octave); 
-		TrajectoryNode end = new TrajectoryNode(point, time);
-		PointCorrespondence prediction = new PointCorrespondence(start, end, this);
-		return prediction;
+		filter.predict(time, correspondence.predicted.point.position);
+		return predicted(time);
+	}
+	
+	/**
+	 * Generates a point correspondence, as predict, for a prediction already computed by the
+	 * filter (for instance, with the filters of other trajectories, see FilterBank).
+	 * @param time Time of the prediction.
+	 * @param x Predicted position.
+	 * @param y Predicted position.
+	 * @return Point correspondence.
+	 */
+	PointCorrespondence predict(final int time, final double x, final double y) {
+		if (correspondence == null)
+			correspondence = new PointCorrespondence(getNode(size-1), getNode(size-1), this);
+		correspondence.predicted.point.position.x = x;
+		correspondence.predicted.point.position.y = y;
+		return predicted(time);
+	}
+	
+	/**
+	 * Complete the point correspondence of a prediction.
+	 */
+	private PointCorrespondence predicted(final int time) {
+		//Get last node of the trajectory.
+		getNode(size-1, correspondence.actual);
+		TrajectoryNode end = correspondence.predicted;
+		end.point.octave = octaves[size-1];
+		end.time = time;
+		correspondence.status = 0;
+		return correspondence;
 	}
 	
 
+	/**
+	 * Unique ID of the trajectory.
+	 * @return ID
+	 */
+	public int getID() {
+		return ID;
+	}
+	
 	/**
 	 * Starting time for the trajectory.
 	 * @return staring time
 	 */
 	public int start() {
-		TrajectoryNode start = nodes.get(0);
-		return start.time;
+		return times[0];
 	}
 	
 	/**
@@ -185,15 +518,83 @@ public class Trajectory {
 	 * @return ending time
 	 */
 	public int end() {
-		TrajectoryNode end = nodes.get(nodes.size()-1);
-		return end.time;
+		return times[size-1];
+	}
+	
+	/**
+	 * Number of nodes of the trajectory.
+	 * @return number of nodes
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Time of the given node.
+	 * @param i Index of the node (0 is the first node).
+	 * @return time
+	 */
+	public int getTime(final int i) {
+		return times[i];
+	}
+	
+	/**
+	 * X coordinate of the given node.
+	 * @param i Index of the node (0 is the first node).
+	 * @return x coordinate
+	 */
+	public double getX(final int i) {
+		return xs[i];
+	}
+	
+	/**
+	 * Y coordinate of the given node.
+	 * @param i Index of the node (0 is the first node).
+	 * @return y coordinate
+	 */
+	public double getY(final int i) {
+		return ys[i];
+	}
+	
+	/**
+	 * Octave of the given node.
+	 * @param i Index of the node (0 is the first node).
+	 * @return octave
+	 */
+	public int getOctave(final int i) {
+		return octaves[i];
+	}
+	
+	/**
+	 * Copy of the given node.
+	 * @param i Index of the node (0 is the first node).
+	 * @return New node object with the node values.
+	 */
+	public TrajectoryNode getNode(final int i) {
+		return new TrajectoryNode(new PointDetection(xs[i], ys[i], octaves[i]), times[i]);
+	}
+	
+	/**
+	 * Copy the values of the given node into an existing node object, so that nodes can be
+	 * visited without creating new objects.
+	 * @param i Index of the node (0 is the first node).
+	 * @param node Node object where the values are copied.
+	 * @return The node object given.
+	 */
+	public TrajectoryNode getNode(final int i, final TrajectoryNode node) {
+		node.time = times[i];
+		node.point.position.x = xs[i];
+		node.point.position.y = ys[i];
+		node.point.octave = octaves[i];
+		return node;
 	}
 
 	public String toString () {
 		String value = "R:"; 
 
-		for (TrajectoryNode node : nodes) {
-			value += node.toString();
+		TrajectoryNode node = new TrajectoryNode(new PointDetection(0, 0, 0), 0);
+		for (int i = 0; i < size; i++) {
+			value += getNode(i, node).toString();
 		}
 		return value;
 	}
@@ -211,14 +612,13 @@ public class Trajectory {
 	}
 	
 	public boolean trajectoryExists(final int time) {
-		return (nodes.get(0).time>=time && nodes.get(nodes.size()-1).time<=time);
+		return (times[0]>=time && times[size-1]<=time);
 	}
 	public void drawPath(Mat image, Scalar color) {
-		Iterator<TrajectoryNode> it = nodes.iterator();
-		TrajectoryNode node1 = it.next();
-		TrajectoryNode node2;
-		while (it.hasNext()) {
-			node2 = it.next();
+		TrajectoryNode node1 = getNode(0);
+		TrajectoryNode node2 = new TrajectoryNode(node1);
+		for (int i = 1; i < size; i++) {
+			getNode(i, node2);
 			node1.DrawPath(image, node2, color);
 		}
 	}
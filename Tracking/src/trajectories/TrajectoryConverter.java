@@ -0,0 +1,64 @@
+package trajectories;
+
+import java.io.IOException;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Conversion between XML and binary trajectory files. Trajectories are read and written one by
+ * one, with the streamed XML reader and writer.
+ * Usage: TrajectoryConverter input output. When output ends with ".xml", input is a binary file
+ * converted to XML; otherwise input is an XML file converted to binary. The binary format rounds
+ * coordinates to 1/256 pixel (see BinaryTrajectoryWriter).
+ */
+public class TrajectoryConverter {
+
+	/**
+	 * Convert an XML trajectory file to binary format.
+	 * @param xmlFile Input file.
+	 * @param binaryFile Output file.
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	public static void xmlToBinary(final String xmlFile, final String binaryFile) throws IOException, XMLStreamException {
+		XMLTrajectoryReader reader = new XMLTrajectoryReader(xmlFile);
+		BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(binaryFile);
+		try {
+			while (reader.hasNext())
+				writer.write(reader.next());
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * Convert a binary trajectory file to XML format.
+	 * @param binaryFile Input file.
+	 * @param xmlFile Output file.
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	public static void binaryToXML(final String binaryFile, final String xmlFile) throws IOException, XMLStreamException {
+		BinaryTrajectoryReader reader = new BinaryTrajectoryReader(binaryFile);
+		XMLTrajectoryWriter writer = new XMLTrajectoryWriter(xmlFile);
+		try {
+			for (int i = 0; i < reader.size(); i++)
+				writer.write(reader.read(i));
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	public static void main(String args[]) throws IOException, XMLStreamException {
+		if (args.length != 2) {
+			System.out.println("Usage: TrajectoryConverter input output");
+			return;
+		}
+		if (args[1].endsWith(".xml"))
+			binaryToXML(args[0], args[1]);
+		else
+			xmlToBinary(args[0], args[1]);
+	}
+}
@@ -1,6 +1,9 @@
 package trajectories;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
@@ -45,6 +48,15 @@ public class TrajectoryNode {
 		
 		point.writeXML(doc, nodeElement);
 	}
+
+	public void writeXML(final XMLStreamWriter writer) throws XMLStreamException {
+		//Write Node element, with attributes time and type.
+		writer.writeStartElement("Node");
+		writer.writeAttribute("time", Integer.toString(time));
+		writer.writeAttribute("type", "P");
+		point.writeXML(writer);
+		writer.writeEndElement();
+	}
 	
 	
 	public static TrajectoryNode ReadXMLTrajectoryNode(final Node node){		
@@ -54,15 +66,28 @@ public class TrajectoryNode {
 			NodeList listScales = eElement3.getElementsByTagName("scale");
 			Node pointDetection = listPointDetection.item(0);
 			Node scale = listScales.item(0);
-			System.out.println("");
 			TrajectoryNode tNode = new TrajectoryNode (	PointDetection.readXML(pointDetection, scale),
 														Integer.parseInt(eElement3.getAttribute("time")));
-			System.out.println("Node time: " + tNode.time);
 			return tNode;
 			
 		}
 		return null;					
 	}	
+	
+	/**
+	 * Read a node from a streamed XML input. The reader must be placed at the start of the Node
+	 * element, and it is left at the end of the element.
+	 * @param reader XML stream.
+	 * @return The node read.
+	 * @throws XMLStreamException
+	 */
+	public static TrajectoryNode ReadXMLTrajectoryNode(final XMLStreamReader reader) throws XMLStreamException {
+		int time = Integer.parseInt(reader.getAttributeValue(null, "time"));
+		PointDetection point = PointDetection.readXML(reader);
+		if (point == null)
+			throw new XMLStreamException("Node without position or scale", reader.getLocation());
+		return new TrajectoryNode(point, time);
+	}
 
 	public String toString() {
 		String value = " D: " + this.point + " T: " + this.time;
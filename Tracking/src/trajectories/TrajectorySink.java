@@ -0,0 +1,30 @@
+package trajectories;
+
+import java.io.IOException;
+
+/**
+ * Destination of the finished trajectories of a tracker (see Trajectories). The tracker hands
+ * each finished trajectory to the sink and does not use it again, so the sink may keep it, or
+ * process it in another thread (see AsyncTrajectorySink).
+ */
+public interface TrajectorySink {
+
+	/**
+	 * Take a finished trajectory.
+	 * @param trajectory Finished trajectory.
+	 * @throws IOException
+	 */
+	public void accept(final Trajectory trajectory) throws IOException;
+
+	/**
+	 * Send the trajectories taken so far to their final destination.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Finish the output. No more trajectories can be taken after calling this function.
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,24 @@
+package trajectories;
+
+import java.io.IOException;
+
+/**
+ * Output file for the finished trajectories of a video. Trajectories are written one by one, as
+ * they finish, so the output does not need to keep them in memory. As a sink, taking a trajectory
+ * writes it.
+ */
+public interface TrajectoryWriter extends TrajectorySink {
+
+	/**
+	 * Write a finished trajectory.
+	 * @param trajectory Trajectory to be written.
+	 * @throws IOException
+	 */
+	public void write(final Trajectory trajectory) throws IOException;
+
+	/**
+	 * Finish the output. No more trajectories can be written after calling this function.
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,68 @@
+package trajectories;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Auxiliary functions for variable length integers (7 bits per byte, the highest bit set when
+ * more bytes follow), used by the binary trajectory format. Signed values are zigzag encoded, so
+ * that small negative values also use few bytes.
+ */
+final class VarInt {
+
+	/**
+	 * Maximum number of bytes of an encoded long value.
+	 */
+	static final int MAX_BYTES = 10;
+
+	private VarInt() {
+	}
+
+	/**
+	 * Write an unsigned value.
+	 * @param buffer Output buffer.
+	 * @param value Value, interpreted as unsigned.
+	 */
+	static void put(final ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Write a signed value.
+	 * @param buffer Output buffer.
+	 * @param value Value.
+	 */
+	static void putSigned(final ByteBuffer buffer, final long value) {
+		put(buffer, (value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Read an unsigned value.
+	 * @param buffer Input buffer.
+	 * @return The value read.
+	 */
+	static long get(final ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	/**
+	 * Read a signed value.
+	 * @param buffer Input buffer.
+	 * @return The value read.
+	 */
+	static long getSigned(final ByteBuffer buffer) {
+		long value = get(buffer);
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,117 @@
+package trajectories;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streamed reader for trajectory files (VideoAnnotation/Trajectory/...). Trajectories are read one
+ * by one while iterating, so that only the current trajectory is kept in memory, whatever the size
+ * of the file.
+ */
+public class XMLTrajectoryReader implements Iterator<Trajectory>, Closeable {
+
+	/**
+	 * Input file stream.
+	 */
+	private InputStream stream;
+	/**
+	 * XML reader over the input stream.
+	 */
+	private XMLStreamReader reader;
+	/**
+	 * Next trajectory to be returned, already read from the file. It is null when the next
+	 * trajectory has not been read yet.
+	 */
+	private Trajectory next;
+	/**
+	 * True when the end of the file has been reached.
+	 */
+	private boolean finished;
+
+	/**
+	 * Constructor. Open the file and check that it is a VideoAnnotation file.
+	 * @param videoFile Name of the XML file.
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	public XMLTrajectoryReader(final String videoFile) throws IOException, XMLStreamException {
+		stream = new BufferedInputStream(new FileInputStream(videoFile), 1 << 16);
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		reader = factory.createXMLStreamReader(stream);
+		reader.nextTag();
+		if (!reader.getLocalName().equals("VideoAnnotation")) {
+			close();
+			throw new XMLStreamException("Not a VideoAnnotation file: " + videoFile);
+		}
+		finished = false;
+	}
+
+	/**
+	 * Date attribute of the VideoAnnotation element.
+	 * @return the date, or null if it was not written.
+	 */
+	public String getDate() {
+		return reader.getAttributeValue(null, "date");
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next != null)
+			return true;
+		if (finished)
+			return false;
+		try {
+			//Move to the next Trajectory element, or to the end of the document.
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT
+						&& reader.getLocalName().equals("Trajectory")) {
+					next = Trajectory.ReadXMLTrajectory(reader);
+					//Trajectories without nodes are skipped.
+					if (next != null)
+						return true;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IllegalStateException("Error reading trajectory file", e);
+		}
+		finished = true;
+		return false;
+	}
+
+	@Override
+	public Trajectory next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Trajectory trajectory = next;
+		next = null;
+		return trajectory;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package trajectories;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Streamed XML output for the trajectories of a video. The file has the same structure than the
+ * one built with the DOM functions (VideoAnnotation/Trajectory/TrajectoryNodes/Node), but each
+ * trajectory is sent to the file as soon as it is written, so that the memory used does not
+ * depend on the length of the video.
+ */
+public class XMLTrajectoryWriter implements TrajectoryWriter {
+
+	/**
+	 * Output file stream.
+	 */
+	private OutputStream stream;
+	/**
+	 * XML writer over the output stream.
+	 */
+	private XMLStreamWriter writer;
+
+	/**
+	 * Constructor. Create the output file, and open the VideoAnnotation element.
+	 * @param videoFile Name of the XML file.
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	public XMLTrajectoryWriter(final String videoFile) throws IOException, XMLStreamException {
+		stream = new BufferedOutputStream(new FileOutputStream(videoFile));
+		writer = XMLOutputFactory.newInstance().createXMLStreamWriter(stream, "UTF-8");
+		writer.writeStartDocument("UTF-8", "1.0");
+		//Create parent element VideoAnnotation and set date and time of video.
+		writer.writeStartElement("VideoAnnotation");
+		writer.writeAttribute("date", new Date().toString());
+	}
+
+	/**
+	 * Write a finished trajectory, and send it to the output stream.
+	 * @param trajectory Trajectory to be written.
+	 * @throws IOException
+	 */
+	@Override
+	public void write(final Trajectory trajectory) throws IOException {
+		try {
+			trajectory.writeXML(writer);
+			writer.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void accept(final Trajectory trajectory) throws IOException {
+		write(trajectory);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		stream.flush();
+	}
+
+	/**
+	 * Close the VideoAnnotation element and the output file.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			stream.close();
+		}
+	}
+}